@@ -0,0 +1,15 @@
+package org.keycloak.matrix;
+
+/**
+ * State of a login approval prompt sent to a Matrix user.
+ */
+public enum ApprovalState {
+    /** The prompt was sent and no decision has been received yet. */
+    PENDING,
+    /** The user approved the login by reacting to the prompt. */
+    APPROVED,
+    /** The user denied the login by reacting to the prompt. */
+    DENIED,
+    /** The prompt is unknown or its validity period has elapsed. */
+    EXPIRED
+}
@@ -0,0 +1,85 @@
+package org.keycloak.matrix;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Consecutive-failure circuit breaker guarding the sends to a homeserver. After the failure threshold is reached
+ * the circuit opens and sends fail fast; once the open period has elapsed a single trial send is let through,
+ * closing the circuit on success and opening it again on failure.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private State state = State.CLOSED;
+
+    /**
+     * @param failureThreshold The number of consecutive failures opening the circuit, 0 or less to never open it
+     * @param openMillis How long the circuit stays open before a trial send is allowed
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this(failureThreshold, openMillis, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @return true if a send may be attempted, false if it must fail fast
+     */
+    synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && clock.getAsLong() - openedAt >= openMillis) {
+            // Let a single trial through, the others keep failing fast until it completes
+            state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+        }
+    }
+
+    /**
+     * Records a send that says nothing about the homeserver. A half-open circuit goes back to open without
+     * restarting its open period, so that the next send can be the trial.
+     */
+    synchronized void recordIgnored() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    /**
+     * @return The current state, an open circuit whose open period has elapsed being reported as half-open
+     */
+    synchronized State getState() {
+        if (state == State.OPEN && clock.getAsLong() - openedAt >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+}
@@ -0,0 +1,15 @@
+package org.keycloak.matrix;
+
+/**
+ * Result of the last background health check of a Matrix client.
+ */
+public enum ClientHealth {
+    /** The client has not been checked yet. */
+    UNKNOWN,
+    /** The homeserver accepted the bot token. */
+    HEALTHY,
+    /** The homeserver rejected the bot token, the client must be rebuilt. */
+    TOKEN_REJECTED,
+    /** The homeserver could not be reached or answered with an unexpected error. */
+    UNREACHABLE
+}
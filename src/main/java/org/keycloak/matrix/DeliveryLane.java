@@ -0,0 +1,167 @@
+package org.keycloak.matrix;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded execution lane for the Matrix sends of one authenticator configuration of a realm. Each lane has its
+ * own threads and queue, so that a rate-limited bot or a login burst in one realm cannot take the threads or
+ * queue slots of another. Lanes also share a fair pool of permits bounding the sends in flight across all of
+ * them; permits are handed out in arrival order, so no lane can starve the others.
+ */
+public class DeliveryLane {
+    private final String name;
+    private final String realmId;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore sharedPermits;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param name The lane name, used for its threads
+     * @param realmId The realm the lane belongs to
+     * @param size The maximum number of sends of the lane running at once
+     * @param queueCapacity The maximum number of sends waiting for a thread of the lane
+     * @param sharedPermits The fair permits shared by all lanes
+     */
+    DeliveryLane(String name, String realmId, int size, int queueCapacity, Semaphore sharedPermits) {
+        this.name = name;
+        this.realmId = realmId;
+        this.queueCapacity = queueCapacity;
+        this.sharedPermits = sharedPermits;
+        this.executor = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), r -> {
+                Thread thread = new Thread(r, "matrix-2fa-lane-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs a send on the lane. A full lane fails the send right away instead of queueing it, and a send whose
+     * future is cancelled before it starts is skipped.
+     * @param send The send to run
+     * @return A future completed with the result of the send, or failed with its exception or with a
+     *         MatrixMessageException if the lane is saturated
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> send) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> run(send, result));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            result.completeExceptionally(new MatrixMessageException("Delivery lane " + name + " is saturated", e));
+        }
+        return result;
+    }
+
+    private <T> void run(Callable<T> send, CompletableFuture<T> result) {
+        // The login gave up on the send while it was queued
+        if (result.isDone()) {
+            return;
+        }
+        waiting.incrementAndGet();
+        try {
+            sharedPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return;
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        try {
+            if (!result.isDone()) {
+                result.complete(send.call());
+            }
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        } finally {
+            sharedPermits.release();
+        }
+    }
+
+    /**
+     * Changes the number of sends of the lane running at once. Sends already running are not interrupted.
+     * @param size The new lane size
+     */
+    synchronized void resize(int size) {
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else if (size < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Stops accepting sends. Sends already queued still run.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the sends of a shut down lane, queued ones included, to complete.
+     * @param timeoutMillis The maximum time to wait
+     * @return true if all sends completed, false if the timeout elapsed first
+     */
+    boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public int getSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return The number of sends of the lane running, including those waiting for a shared permit
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return The number of sends of the lane waiting for a thread of the lane
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return The number of sends of the lane holding a thread but waiting for a shared permit
+     */
+    public int getWaitingForPermit() {
+        return waiting.get();
+    }
+
+    /**
+     * @return The number of sends refused because the lane was full
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+}
@@ -0,0 +1,184 @@
+package org.keycloak.matrix;
+
+import org.infinispan.commons.api.BasicCache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Index of the direct message room the bot shares with each Matrix user. Entries live in a map that can
+ * be shared with other bots and other cluster nodes, so each index prefixes its keys with its own namespace.
+ * Hit and miss counters and the entry count are local to the node.
+ * <p>
+ * Each room also has a reverse entry pointing to its user, so that a room is removed without scanning the
+ * map; user IDs start with {@code @} and room IDs with {@code !}, so both kinds of entries share one namespace.
+ * Clearing the index moves it to a new generation instead of removing every entry: entries of previous
+ * generations are no longer read and expire once idle. Entries in use never expire, as reading them keeps
+ * them alive, and they are kept current by the sync listener.
+ */
+class DirectRoomIndex {
+    private final ConcurrentMap<String, Object> rooms;
+    private final String keyPrefix;
+    private final String generationKey;
+    private final long maxIdleMillis;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+
+    /**
+     * Creates an index backed by a private in-memory map.
+     */
+    DirectRoomIndex() {
+        this(new ConcurrentHashMap<>(), "", 0L);
+    }
+
+    /**
+     * @param rooms The map holding the entries, e.g. a replicated Infinispan cache
+     * @param keyPrefix The namespace of this index within the map
+     * @param maxIdleMillis How long an entry stays in an Infinispan cache without being read or written, 0 or
+     *                      less to keep it until removed. Ignored for other maps.
+     */
+    DirectRoomIndex(ConcurrentMap<String, Object> rooms, String keyPrefix, long maxIdleMillis) {
+        this.rooms = rooms;
+        this.keyPrefix = keyPrefix;
+        this.generationKey = keyPrefix + "generation";
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Looks up the direct message room for a user and records a cache hit or miss.
+     * @param matrixUserId The Matrix user ID
+     * @return The room ID, or null if the room is not indexed
+     */
+    String get(String matrixUserId) {
+        String roomId = peek(matrixUserId);
+        if (roomId != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return roomId;
+    }
+
+    /**
+     * Looks up the direct message room for a user without recording a cache hit or miss.
+     */
+    String peek(String matrixUserId) {
+        return (String) rooms.get(key(matrixUserId));
+    }
+
+    void put(String matrixUserId, String roomId) {
+        String generation = generation();
+        if (write(generation + matrixUserId, roomId) == null) {
+            entries.increment();
+        }
+        write(generation + roomId, matrixUserId);
+    }
+
+    /**
+     * Indexes a room only if the user has no room yet, so the first room found stays canonical.
+     */
+    void putIfAbsent(String matrixUserId, String roomId) {
+        String generation = generation();
+        String key = generation + matrixUserId;
+        Object previous = expires()
+            ? cache().putIfAbsent(key, roomId, -1, TimeUnit.MILLISECONDS, maxIdleMillis, TimeUnit.MILLISECONDS)
+            : rooms.putIfAbsent(key, roomId);
+        if (previous == null) {
+            entries.increment();
+            write(generation + roomId, matrixUserId);
+        }
+    }
+
+    void remove(String matrixUserId) {
+        String generation = generation();
+        Object roomId = rooms.remove(generation + matrixUserId);
+        if (roomId != null) {
+            entries.decrement();
+            rooms.remove(generation + roomId, matrixUserId);
+        }
+    }
+
+    /**
+     * Removes the user's entry only if it still points to the given room.
+     */
+    void remove(String matrixUserId, String roomId) {
+        String generation = generation();
+        if (rooms.remove(generation + matrixUserId, roomId)) {
+            entries.decrement();
+            rooms.remove(generation + roomId, matrixUserId);
+        }
+    }
+
+    /**
+     * Removes the index entry pointing to the given room, found through the room's reverse entry.
+     */
+    void removeRoom(String roomId) {
+        String generation = generation();
+        Object matrixUserId = rooms.remove(generation + roomId);
+        if (matrixUserId != null && rooms.remove(generation + matrixUserId, roomId)) {
+            entries.decrement();
+        }
+    }
+
+    /**
+     * @return The number of entries indexed through this node, entries written by other nodes or expired
+     *         since being written are not accounted for
+     */
+    int size() {
+        return (int) Math.max(0, entries.sum());
+    }
+
+    void clear() {
+        // Compare-and-set rather than merge, whose remapping function a clustered cache would have to marshal
+        while (true) {
+            Object current = rooms.get(generationKey);
+            if (current == null
+                    ? rooms.putIfAbsent(generationKey, 1L) == null
+                    : rooms.replace(generationKey, current, (Long) current + 1)) {
+                break;
+            }
+        }
+        entries.reset();
+        if (!expires()) {
+            // Entries that never expire, those of the previous generation are dropped right away
+            rooms.keySet().removeIf(key -> key.startsWith(keyPrefix) && !key.equals(generationKey)
+                && !key.startsWith(generation()));
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private Object write(String key, String value) {
+        if (expires()) {
+            return cache().put(key, value, -1, TimeUnit.MILLISECONDS, maxIdleMillis, TimeUnit.MILLISECONDS);
+        }
+        return rooms.put(key, value);
+    }
+
+    private boolean expires() {
+        return rooms instanceof BasicCache && maxIdleMillis > 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private BasicCache<String, Object> cache() {
+        return (BasicCache<String, Object>) rooms;
+    }
+
+    private String generation() {
+        Object generation = rooms.get(generationKey);
+        return keyPrefix + (generation == null ? 0L : (Long) generation) + "|";
+    }
+
+    private String key(String matrixUserId) {
+        return generation() + matrixUserId;
+    }
+}
@@ -0,0 +1,96 @@
+package org.keycloak.matrix;
+
+/**
+ * Span recording its stage as a Java Flight Recorder event, then forwarding to the tracing span it wraps.
+ * Realm and bot tags are inherited from the enclosing span of the same thread, so that events of the
+ * shared Matrix service still carry the realm of the login. Nothing is recorded unless a recording
+ * enables the event.
+ */
+class JfrSpan implements MatrixSpan {
+    private static final ThreadLocal<JfrSpan> CURRENT = new ThreadLocal<>();
+
+    private final MatrixSpan delegate;
+    private final MatrixEvents.StageEvent event;
+    private final JfrSpan parent;
+    private String realm;
+    private String bot;
+    private boolean cacheHit;
+    private long roomsScanned;
+    private boolean failed;
+
+    JfrSpan(String name, MatrixSpan delegate) {
+        this.delegate = delegate;
+        this.parent = CURRENT.get();
+        if (parent != null) {
+            this.realm = parent.realm;
+            this.bot = parent.bot;
+        }
+        CURRENT.set(this);
+
+        MatrixEvents.StageEvent stageEvent = MatrixEvents.create(name);
+        this.event = stageEvent != null && stageEvent.isEnabled() ? stageEvent : null;
+        if (event != null) {
+            event.begin();
+        }
+    }
+
+    @Override
+    public MatrixSpan tag(String key, String value) {
+        if (MatrixTracing.TAG_REALM.equals(key)) {
+            realm = value;
+        } else if (MatrixTracing.TAG_BOT.equals(key)) {
+            bot = value;
+        }
+        delegate.tag(key, value);
+        return this;
+    }
+
+    @Override
+    public MatrixSpan tag(String key, boolean value) {
+        if (MatrixTracing.TAG_CACHE_HIT.equals(key)) {
+            cacheHit = value;
+        }
+        delegate.tag(key, value);
+        return this;
+    }
+
+    @Override
+    public MatrixSpan tag(String key, long value) {
+        if (MatrixTracing.TAG_ROOMS_SCANNED.equals(key)) {
+            roomsScanned = value;
+        }
+        delegate.tag(key, value);
+        return this;
+    }
+
+    @Override
+    public void error(Throwable error) {
+        failed = true;
+        delegate.error(error);
+    }
+
+    @Override
+    public void close() {
+        if (parent != null) {
+            CURRENT.set(parent);
+        } else {
+            CURRENT.remove();
+        }
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.realm = realm;
+                event.bot = bot;
+                event.failed = failed;
+                if (event instanceof MatrixEvents.RoomResolveEvent) {
+                    MatrixEvents.RoomResolveEvent roomEvent = (MatrixEvents.RoomResolveEvent) event;
+                    roomEvent.cacheHit = cacheHit;
+                    roomEvent.roomsScanned = (int) roomsScanned;
+                }
+                event.commit();
+            }
+        }
+        delegate.close();
+    }
+}
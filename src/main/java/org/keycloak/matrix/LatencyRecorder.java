@@ -0,0 +1,46 @@
+package org.keycloak.matrix;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples in a fixed-size ring buffer and computes percentiles over them.
+ */
+class LatencyRecorder {
+    private final long[] samples;
+    private int next = 0;
+    private int count = 0;
+
+    LatencyRecorder(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Computes percentiles using the nearest-rank method.
+     * @param percentiles The percentiles to compute, between 0 and 100
+     * @return The latency in milliseconds for each percentile, or -1 for each if no sample was recorded
+     */
+    long[] percentiles(double... percentiles) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+
+        long[] result = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            if (sorted.length == 0) {
+                result[i] = -1;
+                continue;
+            }
+            int rank = (int) Math.ceil(percentiles[i] / 100.0 * sorted.length);
+            result[i] = sorted[Math.max(0, Math.min(rank, sorted.length) - 1)];
+        }
+        return result;
+    }
+}
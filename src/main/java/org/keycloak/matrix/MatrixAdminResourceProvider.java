@@ -0,0 +1,259 @@
+package org.keycloak.matrix;
+
+import org.keycloak.Config;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Admin endpoints of the Matrix 2FA plugin. Callers need a bearer token of the realm with the
+ * realm-management view-realm role to read and the manage-realm role to act. Admins of the master
+ * realm see every registered client, other realms only see the bot they are configured with.
+ */
+public class MatrixAdminResourceProvider implements RealmResourceProvider {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final long DEFAULT_PAUSE_MILLIS = 1000L;
+
+    private final KeycloakSession session;
+    private final MatrixClientRegistry registry;
+    private final Map<String, RoomProvisioningJob> provisioningJobs;
+
+    public MatrixAdminResourceProvider(KeycloakSession session, MatrixClientRegistry registry,
+                                       Map<String, RoomProvisioningJob> provisioningJobs) {
+        this.session = session;
+        this.registry = registry;
+        this.provisioningJobs = provisioningJobs;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * Starts, or resumes from its last checkpoint, the DM room provisioning job of the realm.
+     */
+    @POST
+    @Path("provisioning")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startProvisioning(@QueryParam("pageSize") @DefaultValue("" + DEFAULT_PAGE_SIZE) int pageSize,
+                                      @QueryParam("parallelism") @DefaultValue("" + DEFAULT_PARALLELISM) int parallelism,
+                                      @QueryParam("pauseMillis") @DefaultValue("" + DEFAULT_PAUSE_MILLIS) long pauseMillis) {
+        requireAdmin(AdminRoles.MANAGE_REALM);
+        if (pageSize < 1 || parallelism < 1 || pauseMillis < 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        RealmModel realm = session.getContext().getRealm();
+        MatrixConfig config = MatrixConfig.fromRealm(realm)
+            .orElseThrow(() -> new NotFoundException("Matrix 2FA is not configured in this realm"));
+
+        try {
+            registry.get(config);
+        } catch (MatrixInitializationException e) {
+            return Response.status(Response.Status.BAD_GATEWAY).entity(Map.of("error", e.getMessage())).build();
+        }
+
+        RoomProvisioningJob job = provisioningJobs.compute(realm.getId(), (realmId, current) -> {
+            if (current != null && current.getStatus() == RoomProvisioningJob.Status.RUNNING) {
+                return current;
+            }
+            RoomProvisioningJob created = new RoomProvisioningJob(session.getKeycloakSessionFactory(), realmId,
+                config, registry, pageSize, parallelism, pauseMillis);
+            Thread thread = new Thread(created, "matrix-2fa-provisioning-" + realm.getName());
+            thread.setDaemon(true);
+            thread.start();
+            return created;
+        });
+        return Response.accepted(toRepresentation(job)).build();
+    }
+
+    @GET
+    @Path("provisioning")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getProvisioning() {
+        requireAdmin(AdminRoles.MANAGE_REALM);
+        RoomProvisioningJob job = provisioningJobs.get(session.getContext().getRealm().getId());
+        if (job == null) {
+            throw new NotFoundException("No provisioning job has been started in this realm");
+        }
+        return toRepresentation(job);
+    }
+
+    /**
+     * Stops the running provisioning job after its current page. It can be resumed later.
+     */
+    @DELETE
+    @Path("provisioning")
+    public Response cancelProvisioning() {
+        requireAdmin(AdminRoles.MANAGE_REALM);
+        RoomProvisioningJob job = provisioningJobs.get(session.getContext().getRealm().getId());
+        if (job != null) {
+            job.cancel();
+        }
+        return Response.noContent().build();
+    }
+
+    /**
+     * Reports the runtime state of the visible Matrix clients.
+     */
+    @GET
+    @Path("stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Map<String, Object>> getStats() {
+        requireAdmin(AdminRoles.VIEW_REALM);
+        return visibleClients().entrySet().stream()
+            .map(entry -> {
+                Map<String, Object> rep = new LinkedHashMap<>();
+                rep.put("client", entry.getKey());
+                rep.put("stats", entry.getValue().getStats());
+                return rep;
+            })
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Reports the saturation of the delivery lanes of the realm, or of every realm for master realm admins.
+     */
+    @GET
+    @Path("lanes")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Map<String, Object>> getLanes() {
+        requireAdmin(AdminRoles.VIEW_REALM);
+        String realmId = session.getContext().getRealm().getId();
+        return registry.getLanes().entrySet().stream()
+            .filter(entry -> isAdminRealm() || entry.getValue().getRealmId().equals(realmId))
+            .map(entry -> toRepresentation(entry.getKey(), entry.getValue()))
+            .collect(Collectors.toList());
+    }
+
+    @POST
+    @Path("cache/flush")
+    public Response flushRoomCache(@QueryParam("client") String client) {
+        requireAdmin(AdminRoles.MANAGE_REALM);
+        getVisibleClient(client).flushRoomCache();
+        return Response.noContent().build();
+    }
+
+    @POST
+    @Path("cache/warm")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response warmRoomCache(@QueryParam("client") String client) {
+        requireAdmin(AdminRoles.MANAGE_REALM);
+        try {
+            int cachedRooms = getVisibleClient(client).warmRoomCache();
+            return Response.ok(Map.of("roomCacheSize", cachedRooms)).build();
+        } catch (MatrixMessageException e) {
+            return Response.status(Response.Status.BAD_GATEWAY).entity(Map.of("error", e.getMessage())).build();
+        }
+    }
+
+    /**
+     * Rebuilds the client with its last known configuration, for instance after rotating the bot token.
+     */
+    @POST
+    @Path("reinitialize")
+    public Response reinitialize(@QueryParam("client") String client) {
+        requireAdmin(AdminRoles.MANAGE_REALM);
+        getVisibleClient(client);
+        try {
+            registry.reinitialize(client);
+            return Response.noContent().build();
+        } catch (MatrixInitializationException e) {
+            return Response.status(Response.Status.BAD_GATEWAY).entity(Map.of("error", e.getMessage())).build();
+        }
+    }
+
+    private Map<String, MatrixService> visibleClients() {
+        if (isAdminRealm()) {
+            return registry.getServices();
+        }
+        return MatrixConfig.fromRealm(session.getContext().getRealm())
+            .map(config -> Stream.concat(Stream.of(config), config.getRoutes().stream())
+                .map(MatrixClientRegistry::key)
+                .filter(key -> registry.getServices().containsKey(key))
+                .distinct()
+                .collect(Collectors.toMap(Function.identity(), key -> registry.getServices().get(key))))
+            .orElse(Map.of());
+    }
+
+    private MatrixService getVisibleClient(String client) {
+        MatrixService service = client == null ? null : visibleClients().get(client);
+        if (service == null) {
+            throw new NotFoundException("Unknown Matrix client");
+        }
+        return service;
+    }
+
+    private boolean isAdminRealm() {
+        return Config.getAdminRealm().equals(session.getContext().getRealm().getName());
+    }
+
+    private Map<String, Object> toRepresentation(RoomProvisioningJob job) {
+        Map<String, Object> rep = new LinkedHashMap<>();
+        rep.put("status", job.getStatus());
+        rep.put("offset", job.getOffset());
+        rep.put("usersScanned", job.getUsersScanned());
+        rep.put("roomsProvisioned", job.getRoomsProvisioned());
+        rep.put("failures", job.getFailures());
+        return rep;
+    }
+
+    private Map<String, Object> toRepresentation(String key, DeliveryLane lane) {
+        Map<String, Object> rep = new LinkedHashMap<>();
+        rep.put("lane", key);
+        rep.put("size", lane.getSize());
+        rep.put("queueCapacity", lane.getQueueCapacity());
+        rep.put("active", lane.getActive());
+        rep.put("queued", lane.getQueued());
+        rep.put("waitingForPermit", lane.getWaitingForPermit());
+        rep.put("rejected", lane.getRejected());
+        rep.put("completed", lane.getCompleted());
+        return rep;
+    }
+
+    private void requireAdmin(String role) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        AccessToken.Access realmAccess = auth.getToken().getRealmAccess();
+        if (isAdminRealm() && realmAccess != null && realmAccess.isUserInRole(AdminRoles.ADMIN)) {
+            return;
+        }
+        AccessToken.Access access = auth.getToken().getResourceAccess(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        if (access == null || !access.isUserInRole(role)) {
+            throw new ForbiddenException("Missing role " + role);
+        }
+    }
+
+    @Override
+    public void close() {
+        // No cleanup needed
+    }
+}
@@ -0,0 +1,45 @@
+package org.keycloak.matrix;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Factory for the Matrix 2FA admin endpoints, served under /realms/{realm}/matrix-2fa.
+ */
+public class MatrixAdminResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String ID = "matrix-2fa";
+
+    // Provisioning jobs by realm ID, at most one per realm
+    private final Map<String, RoomProvisioningJob> provisioningJobs = new ConcurrentHashMap<>();
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new MatrixAdminResourceProvider(session, MatrixAuthenticatorFactory.getRegistry(), provisioningJobs);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // No initialization needed
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // No post-initialization needed
+    }
+
+    @Override
+    public void close() {
+        provisioningJobs.values().forEach(RoomProvisioningJob::cancel);
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -4,89 +4,371 @@ import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
+import org.keycloak.common.util.Time;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.theme.Theme;
 
+import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 /**
  * Matrix authenticator implementation that handles the 2FA flow using Matrix messages.
  */
 public class MatrixAuthenticator implements Authenticator {
     private static final Logger logger = Logger.getLogger(MatrixAuthenticator.class);
     private static final String MATRIX_OTP_FORM_ID = "matrix-2fa-form.ftl";
+    private static final String MATRIX_APPROVAL_FORM_ID = "matrix-2fa-approval.ftl";
+    private static final String APPROVAL_EVENT_NOTE = "matrix_2fa_approval_event";
+    private static final String ROOM_NOTE = "matrix_2fa_room";
+    private static final String LAST_SENT_NOTE = "matrix_2fa_last_sent";
+    private static final String EMAIL_NOTE = "matrix_2fa_sent_by_email";
+    private static final int APPROVAL_POLL_SECONDS = 3;
     
-    private final MatrixService matrixService;
+    private final MatrixClientRegistry registry;
 
-    public MatrixAuthenticator(MatrixService matrixService) {
-        this.matrixService = matrixService;
+    public MatrixAuthenticator(MatrixClientRegistry registry) {
+        this.registry = registry;
     }
 
     @Override
     public void authenticate(AuthenticationFlowContext context) {
-        UserModel user = context.getUser();
-        MatrixConfig config = new MatrixConfig(context.getAuthenticatorConfig());
+        try (MatrixSpan span = MatrixTracing.start("matrix.authenticate")
+                .tag(MatrixTracing.TAG_REALM, context.getRealm().getName())) {
+            authenticate(context, span);
+        }
+    }
 
+    private void authenticate(AuthenticationFlowContext context, MatrixSpan span) {
+        UserModel user = context.getUser();
+        MatrixConfig config;
+        try (MatrixSpan configSpan = MatrixTracing.start("matrix.config.parse")) {
+            config = new MatrixConfig(context.getAuthenticatorConfig());
+        }
         String matrixUserId = user.getFirstAttribute(config.getUserIdAttribute());
         if (matrixUserId == null || matrixUserId.trim().isEmpty()) {
             logger.warn("No Matrix user ID found for user: " + user.getUsername());
             context.failure(AuthenticationFlowError.INVALID_USER);
             return;
         }
+        span.tag(MatrixTracing.TAG_BOT, config.forUser(matrixUserId).getBotUserId());
 
         try {
-            // Initialize Matrix service if not already done
-            if (!matrixService.isInitialized()) {
-                matrixService.initialize(config);
+            // Get the Matrix service for the bot serving the user's homeserver, initializing it if not already done
+            MatrixService matrixService = registry.get(config.forUser(matrixUserId));
+
+            if (config.isReactionApproval()) {
+                requestApproval(context, matrixService, config, matrixUserId);
+                return;
             }
 
             // Generate and store OTP
-            String otp = OTPUtil.generateOTP(config.getOtpLength());
-            OTPUtil.storeOTP(user, otp, config.getOtpValiditySeconds());
+            String otp;
+            try (MatrixSpan otpSpan = MatrixTracing.start("matrix.otp.store")) {
+                otp = OTPUtil.generateOTP(config.getOtpLength());
+                OTPUtil.storeOTP(user, otp, config.getOtpValiditySeconds());
+            }
 
-            // Send OTP via Matrix
+            // Send OTP via Matrix, keeping the room so that a resend can skip the lookup
             String message = config.formatMessage(otp);
-            matrixService.sendOTP(matrixUserId, message);
+            if (config.isEmailFallback()) {
+                deliverWithinBudget(context, matrixService, config, matrixUserId, message);
+            } else {
+                context.getAuthenticationSession().setAuthNote(ROOM_NOTE,
+                    await(submit(context, config, () -> matrixService.sendOTP(matrixUserId, message)), config));
+            }
+            context.getAuthenticationSession().setAuthNote(LAST_SENT_NOTE, String.valueOf(Time.currentTime()));
 
             // Show OTP input form
-            Response challenge = context.form()
-                .setAttribute("matrixUserId", matrixUserId)
-                .setAttribute("otpLength", config.getOtpLength())
+            Response challenge = createOtpForm(context, config, matrixUserId)
                 .createForm(MATRIX_OTP_FORM_ID);
             
             context.challenge(challenge);
             
         } catch (MatrixInitializationException e) {
             logger.error("Failed to initialize Matrix service", e);
+            span.error(e);
             context.failure(AuthenticationFlowError.INTERNAL_ERROR);
         } catch (MatrixMessageException e) {
             logger.error("Failed to send Matrix message", e);
+            span.error(e);
             context.failure(AuthenticationFlowError.INVALID_CREDENTIALS);
         }
     }
 
+    /**
+     * Waits for the Matrix send up to the delivery budget, then sends the same code by email. The Matrix send
+     * is not cancelled, so the code may arrive on both channels. An open circuit goes to email right away.
+     * Without a verified email address to fall back to, the Matrix send is awaited past the budget.
+     */
+    private void deliverWithinBudget(AuthenticationFlowContext context, MatrixService matrixService,
+                                     MatrixConfig config, String matrixUserId, String message)
+            throws MatrixMessageException {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        boolean emailAvailable = hasVerifiedEmail(context.getUser());
+        if (!emailAvailable || !matrixService.isCircuitOpen()) {
+            CompletableFuture<String> delivery = submit(context, config,
+                () -> matrixService.sendOTP(matrixUserId, message));
+            try {
+                String roomId = emailAvailable
+                    ? delivery.get(config.getDeliveryBudgetMillis(), TimeUnit.MILLISECONDS)
+                    : await(delivery, config);
+                authSession.setAuthNote(ROOM_NOTE, roomId);
+                authSession.removeAuthNote(EMAIL_NOTE);
+                return;
+            } catch (TimeoutException e) {
+                logger.warn("Matrix delivery to " + matrixUserId + " exceeded " + config.getDeliveryBudgetMillis()
+                    + " ms, falling back to email");
+            } catch (ExecutionException e) {
+                logger.warn("Matrix delivery to " + matrixUserId + " failed, falling back to email", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MatrixMessageException("Interrupted while sending OTP", e);
+            }
+        } else {
+            logger.debug("Circuit to the Matrix homeserver is open, sending OTP to " + matrixUserId + " by email");
+        }
+
+        sendByEmail(context, message);
+        authSession.setAuthNote(EMAIL_NOTE, "true");
+    }
+
+    /**
+     * Runs a Matrix send on the delivery lane of the realm's authenticator configuration.
+     */
+    private <T> CompletableFuture<T> submit(AuthenticationFlowContext context, MatrixConfig config, Callable<T> send) {
+        String realmName = context.getRealm().getName();
+        DeliveryLane lane = registry.getLane(context.getRealm().getId(), context.getAuthenticatorConfig().getId(),
+            config.getDeliveryLaneSize(), config.getDeliveryLaneQueue());
+        // Lane threads do not see the login's trace context, it is carried over so that the send stages
+        // are children of the login's span
+        return lane.submit(MatrixTracing.wrap(() -> {
+            try (MatrixSpan span = MatrixTracing.start("matrix.deliver").tag(MatrixTracing.TAG_REALM, realmName)) {
+                return send.call();
+            }
+        }));
+    }
+
+    /**
+     * Waits for a Matrix send up to the delivery timeout. A send given up on is cancelled, so that the lane
+     * skips it if it has not started yet.
+     */
+    private static <T> T await(CompletableFuture<T> delivery, MatrixConfig config) throws MatrixMessageException {
+        try {
+            return delivery.get(config.getDeliveryTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            delivery.cancel(false);
+            throw new MatrixMessageException("Matrix send did not complete within "
+                + config.getDeliveryTimeoutMillis() + " ms", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MatrixMessageException) {
+                throw (MatrixMessageException) e.getCause();
+            }
+            throw new MatrixMessageException("Failed to send Matrix message", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MatrixMessageException("Interrupted while sending Matrix message", e);
+        }
+    }
+
+    private void sendByEmail(AuthenticationFlowContext context, String message) throws MatrixMessageException {
+        UserModel user = context.getUser();
+        if (!hasVerifiedEmail(user)) {
+            throw new MatrixMessageException("No verified email address to fall back to for " + user.getUsername());
+        }
+
+        try {
+            KeycloakSession session = context.getSession();
+            Properties messages = session.theme().getTheme(Theme.Type.LOGIN)
+                .getEnhancedMessages(context.getRealm(), session.getContext().resolveLocale(user));
+            String subject = messages.getProperty("matrix-2fa.emailSubject", "Your verification code");
+            session.getProvider(EmailSenderProvider.class)
+                .send(context.getRealm().getSmtpConfig(), user, subject, message, null);
+        } catch (IOException | EmailException e) {
+            throw new MatrixMessageException("Failed to send OTP by email", e);
+        }
+    }
+
+    private static boolean hasVerifiedEmail(UserModel user) {
+        return user.getEmail() != null && user.isEmailVerified();
+    }
+
+    private void requestApproval(AuthenticationFlowContext context, MatrixService matrixService,
+                                 MatrixConfig config, String matrixUserId) throws MatrixMessageException {
+        String eventId = await(submit(context, config, () -> matrixService.sendApprovalRequest(
+            matrixUserId, config.getApprovalMessage(), config.getOtpValiditySeconds())), config);
+        context.getAuthenticationSession().setAuthNote(APPROVAL_EVENT_NOTE, eventId);
+        context.challenge(createApprovalForm(context, matrixUserId));
+    }
+
     @Override
     public void action(AuthenticationFlowContext context) {
+        String approvalEventId = context.getAuthenticationSession().getAuthNote(APPROVAL_EVENT_NOTE);
+        if (approvalEventId != null) {
+            checkApproval(context, approvalEventId);
+            return;
+        }
+
+        MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
+        if (formData.containsKey("resend")) {
+            resendOTP(context);
+            return;
+        }
+
         UserModel user = context.getUser();
-        String providedOTP = context.getHttpRequest().getDecodedFormParameters().getFirst("otp");
+        String providedOTP = formData.getFirst("otp");
 
         if (providedOTP == null || providedOTP.trim().isEmpty()) {
             failWithInvalidOTP(context, "No OTP provided");
             return;
         }
 
-        if (OTPUtil.validateOTP(user, providedOTP)) {
+        MatrixConfig config = new MatrixConfig(context.getAuthenticatorConfig());
+        OTPUtil.AttemptResult result;
+        try (MatrixSpan span = MatrixTracing.start("matrix.otp.validate")
+                .tag(MatrixTracing.TAG_REALM, context.getRealm().getName())) {
+            result = OTPUtil.verifyOTP(user, providedOTP, config.getOtpMaxAttempts());
+        }
+
+        switch (result) {
+            case VALID:
+                context.success();
+                break;
+            case TOO_MANY_ATTEMPTS:
+                failWithInvalidOTP(context, "matrix-2fa.tooManyAttempts");
+                break;
+            case NO_OTP:
+                failWithInvalidOTP(context, "matrix-2fa.codeExpired");
+                break;
+            default:
+                failWithInvalidOTP(context, "Invalid or expired OTP");
+        }
+    }
+
+    private void resendOTP(AuthenticationFlowContext context) {
+        UserModel user = context.getUser();
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        MatrixConfig config = new MatrixConfig(context.getAuthenticatorConfig());
+        String matrixUserId = user.getFirstAttribute(config.getUserIdAttribute());
+
+        String lastSent = authSession.getAuthNote(LAST_SENT_NOTE);
+        int remainingCooldown = lastSent == null
+            ? 0
+            : Integer.parseInt(lastSent) + config.getResendCooldownSeconds() - Time.currentTime();
+        if (remainingCooldown > 0) {
+            context.challenge(createOtpForm(context, config, matrixUserId)
+                .setError("matrix-2fa.resendCooldown", remainingCooldown)
+                .createForm(MATRIX_OTP_FORM_ID));
+            return;
+        }
+
+        try (MatrixSpan span = MatrixTracing.start("matrix.resend")
+                .tag(MatrixTracing.TAG_REALM, context.getRealm().getName())
+                .tag(MatrixTracing.TAG_BOT, config.forUser(matrixUserId).getBotUserId())) {
+            MatrixService matrixService = registry.get(config.forUser(matrixUserId));
+
+            // Re-send the code while it is still valid, a new one is only generated and stored after expiry
+            String otp = OTPUtil.getValidOTP(user);
+            if (otp == null) {
+                otp = OTPUtil.generateOTP(config.getOtpLength());
+                OTPUtil.storeOTP(user, otp, config.getOtpValiditySeconds());
+            }
+
+            String message = config.formatMessage(otp);
+            try {
+                String roomId = authSession.getAuthNote(ROOM_NOTE);
+                if (roomId != null) {
+                    await(submit(context, config, () -> {
+                        matrixService.sendToRoom(roomId, message);
+                        return roomId;
+                    }), config);
+                } else {
+                    authSession.setAuthNote(ROOM_NOTE,
+                        await(submit(context, config, () -> matrixService.sendOTP(matrixUserId, message)), config));
+                }
+                authSession.removeAuthNote(EMAIL_NOTE);
+            } catch (MatrixMessageException e) {
+                if (!config.isEmailFallback()) {
+                    throw e;
+                }
+                logger.warn("Failed to resend Matrix message, falling back to email", e);
+                sendByEmail(context, message);
+                authSession.setAuthNote(EMAIL_NOTE, "true");
+            }
+            authSession.setAuthNote(LAST_SENT_NOTE, String.valueOf(Time.currentTime()));
+
+            context.challenge(createOtpForm(context, config, matrixUserId)
+                .setInfo("matrix-2fa.codeResent")
+                .createForm(MATRIX_OTP_FORM_ID));
+        } catch (MatrixInitializationException | MatrixMessageException e) {
+            logger.error("Failed to resend Matrix message", e);
+            context.challenge(createOtpForm(context, config, matrixUserId)
+                .setError("matrix-2fa.error.messaging")
+                .createForm(MATRIX_OTP_FORM_ID));
+        }
+    }
+
+    private LoginFormsProvider createOtpForm(AuthenticationFlowContext context, MatrixConfig config,
+                                             String matrixUserId) {
+        return context.form()
+            .setAttribute("matrixUserId", matrixUserId)
+            .setAttribute("otpLength", config.getOtpLength())
+            .setAttribute("sentByEmail", context.getAuthenticationSession().getAuthNote(EMAIL_NOTE) != null);
+    }
+
+    private void checkApproval(AuthenticationFlowContext context, String eventId) {
+        MatrixConfig config = new MatrixConfig(context.getAuthenticatorConfig());
+        String matrixUserId = context.getUser().getFirstAttribute(config.getUserIdAttribute());
+        ApprovalState state;
+        try {
+            state = registry.get(config.forUser(matrixUserId)).getApprovalState(eventId);
+        } catch (MatrixInitializationException e) {
+            logger.error("Failed to initialize Matrix service", e);
+            context.failure(AuthenticationFlowError.INTERNAL_ERROR);
+            return;
+        }
+
+        if (state == ApprovalState.PENDING) {
+            context.challenge(createApprovalForm(context, matrixUserId));
+            return;
+        }
+
+        context.getAuthenticationSession().removeAuthNote(APPROVAL_EVENT_NOTE);
+        if (state == ApprovalState.APPROVED) {
             context.success();
+        } else if (state == ApprovalState.DENIED) {
+            logger.debug("Login denied from Matrix for user: " + context.getUser().getUsername());
+            context.failure(AuthenticationFlowError.ACCESS_DENIED);
         } else {
-            failWithInvalidOTP(context, "Invalid or expired OTP");
+            logger.debug("Matrix approval request expired for user: " + context.getUser().getUsername());
+            context.failure(AuthenticationFlowError.EXPIRED_CODE);
         }
     }
 
+    private Response createApprovalForm(AuthenticationFlowContext context, String matrixUserId) {
+        return context.form()
+            .setAttribute("matrixUserId", matrixUserId)
+            .setAttribute("pollSeconds", APPROVAL_POLL_SECONDS)
+            .createForm(MATRIX_APPROVAL_FORM_ID);
+    }
+
     private void failWithInvalidOTP(AuthenticationFlowContext context, String error) {
         logger.debug(error);
-        Response challenge = context.form()
+        MatrixConfig config = new MatrixConfig(context.getAuthenticatorConfig());
+        Response challenge = createOtpForm(context, config, context.getUser().getFirstAttribute(config.getUserIdAttribute()))
             .setError(error)
             .createForm(MATRIX_OTP_FORM_ID);
         context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challenge);
@@ -1,14 +1,20 @@
 package org.keycloak.matrix;
 
 import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
 import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -18,7 +24,14 @@ public class MatrixAuthenticatorFactory implements AuthenticatorFactory {
     public static final String ID = "matrix-2fa";
     private static final String DISPLAY_NAME = "Matrix 2FA";
     private static final String HELP_TEXT = "Sends a one-time password via Matrix messaging";
-    private static final MatrixService matrixService = new MatrixServiceImpl();
+    private static final MatrixClientRegistry registry = new MatrixClientRegistry();
+    private static final String COMPACTION_TASK_NAME = "matrix-2fa-room-compaction";
+
+    private long shutdownGraceSeconds;
+    private long healthCheckIntervalSeconds;
+    private long compactionIntervalSeconds;
+    private int compactionBatchSize;
+    private long compactionThrottleMillis;
 
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
 
@@ -82,6 +95,97 @@ public class MatrixAuthenticatorFactory implements AuthenticatorFactory {
         userIdAttribute.setHelpText("User attribute containing the Matrix user ID");
         userIdAttribute.setDefaultValue("matrix_id");
         configProperties.add(userIdAttribute);
+
+        // OTP Max Attempts
+        ProviderConfigProperty otpMaxAttempts = new ProviderConfigProperty();
+        otpMaxAttempts.setName(MatrixConfig.OTP_MAX_ATTEMPTS);
+        otpMaxAttempts.setLabel("OTP Max Attempts");
+        otpMaxAttempts.setType(ProviderConfigProperty.STRING_TYPE);
+        otpMaxAttempts.setHelpText("Number of wrong codes accepted before the OTP is discarded and a new one must be requested");
+        otpMaxAttempts.setDefaultValue("3");
+        configProperties.add(otpMaxAttempts);
+
+        // Homeserver Routes
+        ProviderConfigProperty homeserverRoutes = new ProviderConfigProperty();
+        homeserverRoutes.setName(MatrixConfig.HOMESERVER_ROUTES);
+        homeserverRoutes.setLabel("Homeserver Routes");
+        homeserverRoutes.setType(ProviderConfigProperty.TEXT_TYPE);
+        homeserverRoutes.setHelpText("One route per line: '<server name suffix> <homeserver URL> <bot user ID> <bot access token>'. "
+            + "Users whose Matrix ID ends with the suffix get their code from that bot, others from the default bot");
+        homeserverRoutes.setSecret(true);
+        configProperties.add(homeserverRoutes);
+
+        // Resend Cooldown
+        ProviderConfigProperty resendCooldown = new ProviderConfigProperty();
+        resendCooldown.setName(MatrixConfig.RESEND_COOLDOWN_SECONDS);
+        resendCooldown.setLabel("Resend Cooldown");
+        resendCooldown.setType(ProviderConfigProperty.STRING_TYPE);
+        resendCooldown.setHelpText("Minimum time in seconds between two sends of the code to the same login");
+        resendCooldown.setDefaultValue("30");
+        configProperties.add(resendCooldown);
+
+        // Email Fallback
+        ProviderConfigProperty emailFallback = new ProviderConfigProperty();
+        emailFallback.setName(MatrixConfig.EMAIL_FALLBACK);
+        emailFallback.setLabel("Email Fallback");
+        emailFallback.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+        emailFallback.setHelpText("Send the code by email when Matrix delivery exceeds the delivery budget or the homeserver is failing");
+        emailFallback.setDefaultValue("false");
+        configProperties.add(emailFallback);
+
+        // Delivery Budget
+        ProviderConfigProperty deliveryBudget = new ProviderConfigProperty();
+        deliveryBudget.setName(MatrixConfig.DELIVERY_BUDGET_MILLIS);
+        deliveryBudget.setLabel("Delivery Budget");
+        deliveryBudget.setType(ProviderConfigProperty.STRING_TYPE);
+        deliveryBudget.setHelpText("Time in milliseconds the login waits for the Matrix send before falling back to email");
+        deliveryBudget.setDefaultValue("2000");
+        configProperties.add(deliveryBudget);
+
+        // Delivery Timeout
+        ProviderConfigProperty deliveryTimeout = new ProviderConfigProperty();
+        deliveryTimeout.setName(MatrixConfig.DELIVERY_TIMEOUT_MILLIS);
+        deliveryTimeout.setLabel("Delivery Timeout");
+        deliveryTimeout.setType(ProviderConfigProperty.STRING_TYPE);
+        deliveryTimeout.setHelpText("Time in milliseconds the login waits for a Matrix send, queueing included, before failing");
+        deliveryTimeout.setDefaultValue("10000");
+        configProperties.add(deliveryTimeout);
+
+        // Delivery Lane Size
+        ProviderConfigProperty deliveryLaneSize = new ProviderConfigProperty();
+        deliveryLaneSize.setName(MatrixConfig.DELIVERY_LANE_SIZE);
+        deliveryLaneSize.setLabel("Delivery Lane Size");
+        deliveryLaneSize.setType(ProviderConfigProperty.STRING_TYPE);
+        deliveryLaneSize.setHelpText("Maximum number of Matrix sends of this configuration running at once");
+        deliveryLaneSize.setDefaultValue("4");
+        configProperties.add(deliveryLaneSize);
+
+        // Delivery Lane Queue
+        ProviderConfigProperty deliveryLaneQueue = new ProviderConfigProperty();
+        deliveryLaneQueue.setName(MatrixConfig.DELIVERY_LANE_QUEUE);
+        deliveryLaneQueue.setLabel("Delivery Lane Queue");
+        deliveryLaneQueue.setType(ProviderConfigProperty.STRING_TYPE);
+        deliveryLaneQueue.setHelpText("Maximum number of Matrix sends of this configuration waiting to run. Further logins fail fast");
+        deliveryLaneQueue.setDefaultValue("20");
+        configProperties.add(deliveryLaneQueue);
+
+        // Approval Mode
+        ProviderConfigProperty approvalMode = new ProviderConfigProperty();
+        approvalMode.setName(MatrixConfig.APPROVAL_MODE);
+        approvalMode.setLabel("Approval Mode");
+        approvalMode.setType(ProviderConfigProperty.LIST_TYPE);
+        approvalMode.setOptions(Arrays.asList(MatrixConfig.APPROVAL_MODE_CODE, MatrixConfig.APPROVAL_MODE_REACTION));
+        approvalMode.setHelpText("'code' asks the user to type the OTP, 'reaction' lets the user approve the login by reacting to the Matrix message");
+        approvalMode.setDefaultValue(MatrixConfig.APPROVAL_MODE_CODE);
+        configProperties.add(approvalMode);
+
+        // Approval Message
+        ProviderConfigProperty approvalMessage = new ProviderConfigProperty();
+        approvalMessage.setName(MatrixConfig.APPROVAL_MESSAGE);
+        approvalMessage.setLabel("Approval Message");
+        approvalMessage.setType(ProviderConfigProperty.STRING_TYPE);
+        approvalMessage.setHelpText("Prompt sent in reaction mode. The OTP validity period applies to the prompt");
+        configProperties.add(approvalMessage);
     }
 
     @Override
@@ -130,21 +234,58 @@ public class MatrixAuthenticatorFactory implements AuthenticatorFactory {
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return new MatrixAuthenticator(matrixService);
+        return new MatrixAuthenticator(registry);
+    }
+
+    static MatrixClientRegistry getRegistry() {
+        return registry;
     }
 
     @Override
     public void init(Config.Scope config) {
-        // No initialization needed
+        MatrixTracing.init(config.getBoolean("tracingEnabled", true));
+        shutdownGraceSeconds = config.getLong("shutdownGraceSeconds", 10L);
+        healthCheckIntervalSeconds = config.getLong("healthCheckIntervalSeconds", 60L);
+        registry.setCircuitBreaker(config.getInt("circuitFailureThreshold", 5),
+            config.getLong("circuitOpenSeconds", 30L) * 1000L);
+        registry.setMaxConcurrentSends(config.getInt("maxConcurrentSends", 64));
+
+        String homeDir = System.getProperty("kc.home.dir");
+        String syncStateDir = config.get("syncStateDir",
+            homeDir == null ? null : Paths.get(homeDir, "data", "matrix-2fa").toString());
+        registry.setSyncStateDirectory(syncStateDir == null ? null : Paths.get(syncStateDir));
+        registry.setRoomMaxIdle(config.getLong("roomCacheMaxIdleSeconds", 2592000L) * 1000L);
+        compactionIntervalSeconds = config.getLong("compactionIntervalSeconds", 3600L);
+        compactionBatchSize = config.getInt("compactionBatchSize", 50);
+        compactionThrottleMillis = config.getLong("compactionThrottleMillis", 200L);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // No post-initialization needed
+        // Share the DM room index through the replicated work cache, so rooms resolved on one node serve all of them
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+            if (infinispan != null) {
+                registry.setRoomStore(infinispan.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME));
+            }
+        });
+
+        if (healthCheckIntervalSeconds > 0) {
+            registry.startHealthChecks(factory, healthCheckIntervalSeconds);
+        }
+
+        if (compactionIntervalSeconds <= 0) {
+            return;
+        }
+
+        long intervalMillis = compactionIntervalSeconds * 1000L;
+        RoomCompactionTask task = new RoomCompactionTask(registry, compactionBatchSize, compactionThrottleMillis);
+        KeycloakModelUtils.runJobInTransaction(factory, session -> session.getProvider(TimerProvider.class)
+            .schedule(new ClusterAwareScheduledTaskRunner(factory, task, intervalMillis), intervalMillis, COMPACTION_TASK_NAME));
     }
 
     @Override
     public void close() {
-        // No cleanup needed
+        registry.shutdown(shutdownGraceSeconds * 1000L);
     }
 }
\ No newline at end of file
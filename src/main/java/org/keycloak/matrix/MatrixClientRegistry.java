@@ -0,0 +1,288 @@
+package org.keycloak.matrix;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps one Matrix service per bot account, shared by all realms and authenticator configs using that bot.
+ */
+public class MatrixClientRegistry {
+    private static final Logger logger = Logger.getLogger(MatrixClientRegistry.class);
+    private static final String ROOM_KEY_PREFIX = "matrix-2fa-room|";
+
+    private final Map<String, MatrixService> services = new ConcurrentHashMap<>();
+    private final Map<String, MatrixConfig> configs = new ConcurrentHashMap<>();
+    // Token each service was last initialized with
+    private final Map<String, String> activeTokens = new ConcurrentHashMap<>();
+    private final Map<String, DeliveryLane> lanes = new ConcurrentHashMap<>();
+    private volatile Semaphore sendPermits = new Semaphore(64, true);
+    private volatile SyncTokenStore syncTokenStore = new SyncTokenStore(null);
+    private volatile ConcurrentMap<String, Object> roomStore = new ConcurrentHashMap<>();
+    private volatile long roomMaxIdleMillis = TimeUnit.DAYS.toMillis(30);
+    private volatile int circuitFailureThreshold = 5;
+    private volatile long circuitOpenMillis = 30000L;
+    private volatile KeycloakSessionFactory sessionFactory;
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * Sets the directory where services created from now on persist their sync position.
+     * @param directory The directory, or null to keep sync positions in memory only
+     */
+    void setSyncStateDirectory(Path directory) {
+        this.syncTokenStore = new SyncTokenStore(directory);
+    }
+
+    /**
+     * Sets the map holding the direct message room index of services created from now on.
+     * A replicated cache lets every cluster node reuse rooms resolved or created by the others.
+     * @param roomStore The map shared by the room indexes of all bots
+     */
+    void setRoomStore(ConcurrentMap<String, Object> roomStore) {
+        this.roomStore = roomStore;
+    }
+
+    /**
+     * Sets how long the room index entries of services created from now on stay unused in an Infinispan room
+     * store. Entries are kept current by the sync listener and every lookup keeps them alive, so only entries
+     * of users who stopped logging in, and entries left behind by a cache flush, expire.
+     * @param maxIdleMillis The maximum idle time of an entry, 0 or less to keep entries until removed
+     */
+    void setRoomMaxIdle(long maxIdleMillis) {
+        this.roomMaxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Sets the circuit breaker settings of services created from now on.
+     * @param failureThreshold The number of consecutive failed sends opening the circuit, 0 to never open it
+     * @param openMillis How long sends fail fast once the circuit is open
+     */
+    void setCircuitBreaker(int failureThreshold, long openMillis) {
+        this.circuitFailureThreshold = failureThreshold;
+        this.circuitOpenMillis = openMillis;
+    }
+
+    /**
+     * Sets the number of sends in flight across all delivery lanes, shared fairly between them.
+     * @param maxConcurrentSends The number of permits shared by the lanes created from now on
+     */
+    void setMaxConcurrentSends(int maxConcurrentSends) {
+        this.sendPermits = new Semaphore(maxConcurrentSends, true);
+    }
+
+    /**
+     * Returns the delivery lane of an authenticator configuration of a realm, creating it on first use.
+     * The lane is resized, or replaced if its queue capacity changed, when the configuration was updated.
+     * @param realmId The realm ID
+     * @param configId The authenticator configuration ID, or null for the realm's default lane
+     * @param size The maximum number of sends of the lane running at once
+     * @param queueCapacity The maximum number of sends of the lane waiting for a thread
+     * @return The delivery lane
+     */
+    public DeliveryLane getLane(String realmId, String configId, int size, int queueCapacity) {
+        String key = realmId + "/" + (configId == null ? "default" : configId);
+        return lanes.compute(key, (k, lane) -> {
+            if (lane != null && lane.getQueueCapacity() == queueCapacity) {
+                lane.resize(size);
+                return lane;
+            }
+            if (lane != null) {
+                lane.shutdown();
+            }
+            return new DeliveryLane(k, realmId, size, queueCapacity, sendPermits);
+        });
+    }
+
+    /**
+     * Returns all delivery lanes keyed by realm and authenticator configuration.
+     * @return An unmodifiable view of the lanes
+     */
+    public Map<String, DeliveryLane> getLanes() {
+        return Collections.unmodifiableMap(lanes);
+    }
+
+    /**
+     * Returns the service for the bot described by the configuration, initializing it on first use.
+     * @param config The Matrix configuration
+     * @return An initialized Matrix service
+     * @throws MatrixInitializationException if initialization fails
+     */
+    public MatrixService get(MatrixConfig config) throws MatrixInitializationException {
+        String key = key(config);
+        configs.put(key, config);
+        MatrixService service = services.computeIfAbsent(key, this::createService);
+
+        // Configs of the same bot may hold different valid tokens, the client is only rebuilt with another
+        // token once its own was rejected, so that logins alternating between configs do not rebuild it
+        if (!service.isInitialized() || isReplacingRejectedToken(key, service, config)) {
+            synchronized (service) {
+                if (!service.isInitialized() || isReplacingRejectedToken(key, service, config)) {
+                    initialize(key, service, config);
+                }
+            }
+        }
+        return service;
+    }
+
+    MatrixService createService(String key) {
+        return new MatrixServiceImpl(syncTokenStore,
+            new DirectRoomIndex(roomStore, ROOM_KEY_PREFIX + key + "|", roomMaxIdleMillis),
+            new CircuitBreaker(circuitFailureThreshold, circuitOpenMillis));
+    }
+
+    private boolean isReplacingRejectedToken(String key, MatrixService service, MatrixConfig config) {
+        return service.getHealth() == ClientHealth.TOKEN_REJECTED
+            && !config.getBotAccessToken().equals(activeTokens.get(key));
+    }
+
+    private void initialize(String key, MatrixService service, MatrixConfig config)
+            throws MatrixInitializationException {
+        service.initialize(config);
+        activeTokens.put(key, config.getBotAccessToken());
+    }
+
+    /**
+     * Starts the background health check of every registered client. A client whose token is rejected
+     * is rebuilt from the realms' current authenticator configurations, so that a rotated token is picked up
+     * without waiting for a login, and a client left uninitialized by a failed rebuild is retried at every
+     * check, so that logins do not pay for it.
+     * @param sessionFactory The factory of the sessions the configurations are read in
+     * @param intervalSeconds The time between two checks of a client
+     */
+    void startHealthChecks(KeycloakSessionFactory sessionFactory, long intervalSeconds) {
+        this.sessionFactory = sessionFactory;
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "matrix-2fa-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void checkHealth() {
+        for (Map.Entry<String, MatrixService> entry : services.entrySet()) {
+            try {
+                if (!entry.getValue().isInitialized()) {
+                    logger.debug("Retrying initialization of Matrix client " + entry.getKey());
+                    reloadConfig(entry.getKey());
+                    reinitialize(entry.getKey());
+                } else if (entry.getValue().checkHealth() == ClientHealth.TOKEN_REJECTED) {
+                    logger.warn("Matrix token of " + entry.getKey() + " was rejected, re-initializing the client");
+                    reloadConfig(entry.getKey());
+                    reinitialize(entry.getKey());
+                }
+            } catch (MatrixInitializationException e) {
+                logger.error("Failed to re-initialize Matrix client " + entry.getKey(), e);
+            } catch (RuntimeException e) {
+                logger.warn("Matrix health check of " + entry.getKey() + " failed", e);
+            }
+        }
+    }
+
+    private void reloadConfig(String key) {
+        KeycloakSessionFactory factory = sessionFactory;
+        if (factory != null) {
+            KeycloakModelUtils.runJobInTransaction(factory, session ->
+                findReplacementConfig(session, key).ifPresent(config -> configs.put(key, config)));
+        }
+    }
+
+    /**
+     * Looks up, in every realm, a configuration of the bot holding another token than the one the client was
+     * last initialized with, either as default bot or as a route.
+     * @param session The session to read the realms in
+     * @param key The registry key of the bot
+     * @return The first such configuration, or empty if every configuration of the bot holds the same token
+     */
+    Optional<MatrixConfig> findReplacementConfig(KeycloakSession session, String key) {
+        String activeToken = activeTokens.get(key);
+        return session.realms().getRealmsStream()
+            .flatMap(realm -> MatrixConfig.allFromRealm(realm)
+                .flatMap(model -> {
+                    try {
+                        MatrixConfig config = new MatrixConfig(model);
+                        return Stream.concat(Stream.of(config), config.getRoutes().stream());
+                    } catch (IllegalArgumentException e) {
+                        logger.debug("Ignoring invalid Matrix configuration " + model.getAlias() + " of realm "
+                            + realm.getName(), e);
+                        return Stream.empty();
+                    }
+                }))
+            .filter(config -> key(config).equals(key) && !config.getBotAccessToken().equals(activeToken))
+            .findFirst();
+    }
+
+    /**
+     * Returns all registered services keyed by bot.
+     * @return An unmodifiable view of the registered services
+     */
+    public Map<String, MatrixService> getServices() {
+        return Collections.unmodifiableMap(services);
+    }
+
+    /**
+     * Rebuilds the client of a registered service with the configuration it was last requested with.
+     * @param key The registry key of the service
+     * @return false if no service is registered under the key
+     * @throws MatrixInitializationException if initialization fails
+     */
+    public boolean reinitialize(String key) throws MatrixInitializationException {
+        MatrixService service = services.get(key);
+        if (service == null) {
+            return false;
+        }
+        synchronized (service) {
+            initialize(key, service, configs.get(key));
+        }
+        return true;
+    }
+
+    /**
+     * Drains the delivery lanes, then shuts down every registered service in parallel, so that all of them
+     * stop accepting sends at once. Sends still queued on a lane are given the chance to run before their
+     * service refuses them, and the whole shutdown stays within the grace period.
+     * @param graceMillis The maximum time to wait for sends queued and in flight
+     */
+    public void shutdown(long graceMillis) {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        long deadline = System.currentTimeMillis() + graceMillis;
+        lanes.values().forEach(DeliveryLane::shutdown);
+        for (Map.Entry<String, DeliveryLane> entry : lanes.entrySet()) {
+            try {
+                if (!entry.getValue().awaitTermination(Math.max(0, deadline - System.currentTimeMillis()))) {
+                    logger.warn("Delivery lane " + entry.getKey() + " did not drain within the grace period");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        long remainingMillis = Math.max(0, deadline - System.currentTimeMillis());
+        CompletableFuture.allOf(services.values().stream()
+                .map(service -> CompletableFuture.runAsync(() -> service.shutdown(remainingMillis)))
+                .toArray(CompletableFuture[]::new))
+            .join();
+        services.clear();
+        configs.clear();
+    }
+
+    static String key(MatrixConfig config) {
+        return config.getBotUserId() + "@" + config.getServerUrl();
+    }
+}
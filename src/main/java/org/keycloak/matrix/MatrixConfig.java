@@ -1,6 +1,17 @@
 package org.keycloak.matrix;
 
 import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Configuration class for Matrix authentication settings.
@@ -14,12 +25,34 @@ public class MatrixConfig {
     public static final String OTP_VALIDITY_SECONDS = "otpValiditySeconds";
     public static final String OTP_LENGTH = "otpLength";
     public static final String USER_ID_ATTRIBUTE = "matrixUserIdAttribute";
+    public static final String APPROVAL_MODE = "approvalMode";
+    public static final String APPROVAL_MESSAGE = "approvalMessage";
+    public static final String RESEND_COOLDOWN_SECONDS = "resendCooldownSeconds";
+    public static final String OTP_MAX_ATTEMPTS = "otpMaxAttempts";
+    public static final String HOMESERVER_ROUTES = "homeserverRoutes";
+    public static final String EMAIL_FALLBACK = "emailFallback";
+    public static final String DELIVERY_BUDGET_MILLIS = "deliveryBudgetMillis";
+    public static final String DELIVERY_TIMEOUT_MILLIS = "deliveryTimeoutMillis";
+    public static final String DELIVERY_LANE_SIZE = "deliveryLaneSize";
+    public static final String DELIVERY_LANE_QUEUE = "deliveryLaneQueue";
+
+    // Approval modes
+    public static final String APPROVAL_MODE_CODE = "code";
+    public static final String APPROVAL_MODE_REACTION = "reaction";
 
     // Default values
     private static final String DEFAULT_MESSAGE_TEMPLATE = "Your authentication code is: {code}";
     private static final String DEFAULT_OTP_VALIDITY_SECONDS = "300"; // 5 minutes
     private static final String DEFAULT_OTP_LENGTH = "6";
     private static final String DEFAULT_USER_ID_ATTRIBUTE = "matrix_id";
+    private static final String DEFAULT_RESEND_COOLDOWN_SECONDS = "30";
+    private static final String DEFAULT_OTP_MAX_ATTEMPTS = "3";
+    private static final String DEFAULT_DELIVERY_BUDGET_MILLIS = "2000";
+    private static final String DEFAULT_DELIVERY_TIMEOUT_MILLIS = "10000";
+    private static final String DEFAULT_DELIVERY_LANE_SIZE = "4";
+    private static final String DEFAULT_DELIVERY_LANE_QUEUE = "20";
+    private static final String DEFAULT_APPROVAL_MESSAGE =
+        "A sign-in to your account is waiting for approval. React with \uD83D\uDC4D to approve or \uD83D\uDC4E to deny.";
 
     private final String serverUrl;
     private final String botUserId;
@@ -28,6 +61,17 @@ public class MatrixConfig {
     private final int otpValiditySeconds;
     private final int otpLength;
     private final String userIdAttribute;
+    private final String approvalMode;
+    private final String approvalMessage;
+    private final int resendCooldownSeconds;
+    private final int otpMaxAttempts;
+    private final boolean emailFallback;
+    private final long deliveryBudgetMillis;
+    private final long deliveryTimeoutMillis;
+    private final int deliveryLaneSize;
+    private final int deliveryLaneQueue;
+    // Route configurations by Matrix server name suffix
+    private final Map<String, MatrixConfig> routes;
 
     /**
      * Creates a new MatrixConfig instance from an AuthenticatorConfigModel.
@@ -50,6 +94,110 @@ public class MatrixConfig {
             OTP_LENGTH, DEFAULT_OTP_LENGTH));
         this.userIdAttribute = config.getConfig().getOrDefault(
             USER_ID_ATTRIBUTE, DEFAULT_USER_ID_ATTRIBUTE);
+        this.approvalMode = config.getConfig().getOrDefault(
+            APPROVAL_MODE, APPROVAL_MODE_CODE);
+        this.approvalMessage = config.getConfig().getOrDefault(
+            APPROVAL_MESSAGE, DEFAULT_APPROVAL_MESSAGE);
+        this.resendCooldownSeconds = Integer.parseInt(config.getConfig().getOrDefault(
+            RESEND_COOLDOWN_SECONDS, DEFAULT_RESEND_COOLDOWN_SECONDS));
+        this.otpMaxAttempts = Integer.parseInt(config.getConfig().getOrDefault(
+            OTP_MAX_ATTEMPTS, DEFAULT_OTP_MAX_ATTEMPTS));
+        this.emailFallback = Boolean.parseBoolean(config.getConfig().get(EMAIL_FALLBACK));
+        this.deliveryBudgetMillis = Long.parseLong(config.getConfig().getOrDefault(
+            DELIVERY_BUDGET_MILLIS, DEFAULT_DELIVERY_BUDGET_MILLIS));
+        this.deliveryTimeoutMillis = Long.parseLong(config.getConfig().getOrDefault(
+            DELIVERY_TIMEOUT_MILLIS, DEFAULT_DELIVERY_TIMEOUT_MILLIS));
+        this.deliveryLaneSize = Integer.parseInt(config.getConfig().getOrDefault(
+            DELIVERY_LANE_SIZE, DEFAULT_DELIVERY_LANE_SIZE));
+        this.deliveryLaneQueue = Integer.parseInt(config.getConfig().getOrDefault(
+            DELIVERY_LANE_QUEUE, DEFAULT_DELIVERY_LANE_QUEUE));
+
+        if (!APPROVAL_MODE_CODE.equals(approvalMode) && !APPROVAL_MODE_REACTION.equals(approvalMode)) {
+            throw new IllegalArgumentException("Unsupported approval mode '" + approvalMode + "'");
+        }
+
+        this.routes = parseRoutes(config.getConfig().get(HOMESERVER_ROUTES));
+    }
+
+    /**
+     * Creates the configuration of a routed bot, sharing every setting but the homeserver and bot credentials.
+     */
+    private MatrixConfig(MatrixConfig base, String serverUrl, String botUserId, String botAccessToken) {
+        this.serverUrl = serverUrl;
+        this.botUserId = botUserId;
+        this.botAccessToken = botAccessToken;
+        this.messageTemplate = base.messageTemplate;
+        this.otpValiditySeconds = base.otpValiditySeconds;
+        this.otpLength = base.otpLength;
+        this.userIdAttribute = base.userIdAttribute;
+        this.approvalMode = base.approvalMode;
+        this.approvalMessage = base.approvalMessage;
+        this.resendCooldownSeconds = base.resendCooldownSeconds;
+        this.otpMaxAttempts = base.otpMaxAttempts;
+        this.emailFallback = base.emailFallback;
+        this.deliveryBudgetMillis = base.deliveryBudgetMillis;
+        this.deliveryTimeoutMillis = base.deliveryTimeoutMillis;
+        this.deliveryLaneSize = base.deliveryLaneSize;
+        this.deliveryLaneQueue = base.deliveryLaneQueue;
+        this.routes = Collections.emptyMap();
+    }
+
+    /**
+     * Parses the routing table, one route per line: {@code <server name suffix> <homeserver URL> <bot user ID> <bot access token>}.
+     * Blank lines and lines starting with '#' are ignored.
+     */
+    private Map<String, MatrixConfig> parseRoutes(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, MatrixConfig> parsed = new LinkedHashMap<>();
+        for (String line : value.split("\\R")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] parts = trimmed.split("\\s+");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Invalid homeserver route '" + parts[0]
+                    + "', expected: <server name suffix> <homeserver URL> <bot user ID> <bot access token>");
+            }
+            parsed.put(parts[0].toLowerCase(), new MatrixConfig(this, parts[1], parts[2], parts[3]));
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * Finds the configuration of the first Matrix 2FA execution in any of the realm's flows.
+     * @param realm The realm to search
+     * @return The Matrix configuration, or empty if the realm has no configured Matrix 2FA execution
+     */
+    public static Optional<MatrixConfig> fromRealm(RealmModel realm) {
+        return realm.getAuthenticationFlowsStream()
+            .flatMap(flow -> realm.getAuthenticationExecutionsStream(flow.getId()))
+            .filter(execution -> MatrixAuthenticatorFactory.ID.equals(execution.getAuthenticator()))
+            .map(execution -> execution.getAuthenticatorConfig())
+            .filter(Objects::nonNull)
+            .map(realm::getAuthenticatorConfigById)
+            .filter(Objects::nonNull)
+            .findFirst()
+            .map(MatrixConfig::new);
+    }
+
+    /**
+     * Finds the configuration models of every Matrix 2FA execution in any of the realm's flows.
+     * @param realm The realm to search
+     * @return The configuration models, not validated
+     */
+    public static Stream<AuthenticatorConfigModel> allFromRealm(RealmModel realm) {
+        Set<String> configIds = realm.getAuthenticationFlowsStream()
+            .flatMap(flow -> realm.getAuthenticationExecutionsStream(flow.getId()))
+            .filter(execution -> MatrixAuthenticatorFactory.ID.equals(execution.getAuthenticator()))
+            .map(execution -> execution.getAuthenticatorConfig())
+            .filter(Objects::nonNull)
+            .collect(Collectors.toSet());
+        return realm.getAuthenticatorConfigsStream()
+            .filter(config -> configIds.contains(config.getId()));
     }
 
     private String getRequiredConfig(AuthenticatorConfigModel config, String key) {
@@ -88,6 +236,90 @@ public class MatrixConfig {
         return userIdAttribute;
     }
 
+    public String getApprovalMode() {
+        return approvalMode;
+    }
+
+    public String getApprovalMessage() {
+        return approvalMessage;
+    }
+
+    public int getResendCooldownSeconds() {
+        return resendCooldownSeconds;
+    }
+
+    public int getOtpMaxAttempts() {
+        return otpMaxAttempts;
+    }
+
+    public boolean isEmailFallback() {
+        return emailFallback;
+    }
+
+    public long getDeliveryBudgetMillis() {
+        return deliveryBudgetMillis;
+    }
+
+    public long getDeliveryTimeoutMillis() {
+        return deliveryTimeoutMillis;
+    }
+
+    public int getDeliveryLaneSize() {
+        return deliveryLaneSize;
+    }
+
+    public int getDeliveryLaneQueue() {
+        return deliveryLaneQueue;
+    }
+
+    /**
+     * Returns the configurations of the routed bots, without the default one.
+     * @return The routed bot configurations
+     */
+    public Collection<MatrixConfig> getRoutes() {
+        return routes.values();
+    }
+
+    /**
+     * Selects the bot that should deliver messages to a user: the route with the longest server name
+     * suffix matching the domain part of the user's Matrix ID, or the default bot if none matches.
+     * @param matrixUserId The Matrix user ID, e.g. @alice:example.org
+     * @return The configuration of the selected bot
+     */
+    public MatrixConfig forUser(String matrixUserId) {
+        int separator = matrixUserId == null ? -1 : matrixUserId.indexOf(':');
+        if (routes.isEmpty() || separator < 0) {
+            return this;
+        }
+
+        String serverName = matrixUserId.substring(separator + 1).toLowerCase();
+        // Strip the port, if any
+        int portSeparator = serverName.lastIndexOf(':');
+        if (portSeparator >= 0 && serverName.indexOf(']') < portSeparator) {
+            serverName = serverName.substring(0, portSeparator);
+        }
+
+        MatrixConfig selected = this;
+        int selectedLength = -1;
+        for (Map.Entry<String, MatrixConfig> route : routes.entrySet()) {
+            String suffix = route.getKey();
+            boolean matches = serverName.equals(suffix) || serverName.endsWith("." + suffix);
+            if (matches && suffix.length() > selectedLength) {
+                selected = route.getValue();
+                selectedLength = suffix.length();
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Checks whether logins are approved by reacting to a Matrix prompt instead of typing a code.
+     * @return true if the reaction approval mode is configured
+     */
+    public boolean isReactionApproval() {
+        return APPROVAL_MODE_REACTION.equals(approvalMode);
+    }
+
     /**
      * Formats the OTP message using the configured template.
      * @param otp The OTP to include in the message
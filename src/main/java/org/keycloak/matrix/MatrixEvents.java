@@ -0,0 +1,96 @@
+package org.keycloak.matrix;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events for the stages of the Matrix 2FA pipeline. Each event has a default threshold,
+ * so only slow stages are recorded; thresholds can be lowered in the recording settings.
+ */
+final class MatrixEvents {
+    private static final String CATEGORY = "Matrix 2FA";
+
+    private MatrixEvents() {
+    }
+
+    /**
+     * Creates the event recording the stage traced by a span.
+     * @param spanName The span name
+     * @return The event, or null if the stage has no event
+     */
+    static StageEvent create(String spanName) {
+        switch (spanName) {
+            case "matrix.config.parse":
+                return new ConfigResolveEvent();
+            case "matrix.otp.store":
+                return new OtpStoreEvent();
+            case "matrix.room.resolve":
+                return new RoomResolveEvent();
+            case "matrix.message.send":
+                return new MessageSendEvent();
+            case "matrix.otp.validate":
+                return new OtpValidateEvent();
+            default:
+                return null;
+        }
+    }
+
+    @Category({"Keycloak", CATEGORY})
+    @StackTrace(false)
+    abstract static class StageEvent extends Event {
+        @Label("Realm")
+        String realm;
+
+        @Label("Bot")
+        String bot;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("org.keycloak.matrix.ConfigResolve")
+    @Label("Matrix Config Resolution")
+    @Description("Parsing of the authenticator configuration")
+    @Threshold("5 ms")
+    static class ConfigResolveEvent extends StageEvent {
+    }
+
+    @Name("org.keycloak.matrix.OtpStore")
+    @Label("Matrix OTP Generation")
+    @Description("Generation of the code and storage in the user attributes")
+    @Threshold("5 ms")
+    static class OtpStoreEvent extends StageEvent {
+    }
+
+    @Name("org.keycloak.matrix.RoomResolve")
+    @Label("Matrix Room Resolution")
+    @Description("Lookup or creation of the direct message room of the user")
+    @Threshold("20 ms")
+    static class RoomResolveEvent extends StageEvent {
+        @Label("Cache Hit")
+        boolean cacheHit;
+
+        @Label("Rooms Scanned")
+        @Description("Joined rooms whose members were fetched on a cache miss")
+        int roomsScanned;
+    }
+
+    @Name("org.keycloak.matrix.MessageSend")
+    @Label("Matrix Message Send")
+    @Description("Send of a message to a Matrix room")
+    @Threshold("20 ms")
+    static class MessageSendEvent extends StageEvent {
+    }
+
+    @Name("org.keycloak.matrix.OtpValidate")
+    @Label("Matrix OTP Validation")
+    @Description("Validation of the code entered by the user")
+    @Threshold("5 ms")
+    static class OtpValidateEvent extends StageEvent {
+    }
+}
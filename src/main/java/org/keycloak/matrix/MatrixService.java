@@ -1,5 +1,7 @@
 package org.keycloak.matrix;
 
+import java.util.function.Predicate;
+
 /**
  * Service interface for Matrix communication operations.
  */
@@ -15,9 +17,99 @@ public interface MatrixService {
      * Sends a one-time password to a Matrix user.
      * @param matrixUserId The Matrix user ID to send the OTP to
      * @param otp The one-time password to send
+     * @return The ID of the direct message room the OTP was sent to
+     * @throws MatrixMessageException if message sending fails
+     */
+    String sendOTP(String matrixUserId, String otp) throws MatrixMessageException;
+
+    /**
+     * Sends a message to an already resolved room, skipping the room lookup.
+     * @param roomId The room ID returned by {@link #sendOTP}
+     * @param message The message to send
      * @throws MatrixMessageException if message sending fails
      */
-    void sendOTP(String matrixUserId, String otp) throws MatrixMessageException;
+    void sendToRoom(String roomId, String message) throws MatrixMessageException;
+
+    /**
+     * Sends a login approval prompt to a Matrix user and tracks the reactions to it.
+     * @param matrixUserId The Matrix user ID to send the prompt to
+     * @param message The prompt text
+     * @param validitySeconds The number of seconds the prompt can be answered for
+     * @return The event ID of the prompt, used to look up its state
+     * @throws MatrixMessageException if message sending fails
+     */
+    String sendApprovalRequest(String matrixUserId, String message, int validitySeconds)
+        throws MatrixMessageException;
+
+    /**
+     * Returns the current state of an approval prompt.
+     * @param eventId The event ID returned by {@link #sendApprovalRequest}
+     * @return The approval state, {@link ApprovalState#EXPIRED} if the prompt is unknown
+     */
+    ApprovalState getApprovalState(String eventId);
+
+    /**
+     * Resolves the direct message room shared with a Matrix user from the room index only, creating it on a
+     * miss without scanning the bot's joined rooms. Callers should warm the room cache first.
+     * @param matrixUserId The Matrix user ID
+     * @return The room ID
+     * @throws MatrixMessageException if the room cannot be resolved or created
+     */
+    String ensureDirectMessageRoom(String matrixUserId) throws MatrixMessageException;
+
+    /**
+     * Scans the next batch of the bot's joined rooms and leaves and forgets the redundant ones:
+     * rooms the user has left, duplicates of the user's canonical direct message room and rooms
+     * whose user is unknown to Keycloak. Successive calls walk the joined-room list incrementally.
+     * @param isKnownUser Tells whether a Matrix user ID belongs to a Keycloak user
+     * @param maxRooms The maximum number of rooms to scan in this run
+     * @param throttleMillis The pause between two scanned rooms
+     * @return What this run scanned and reclaimed
+     * @throws MatrixMessageException if the joined rooms cannot be listed
+     */
+    RoomCompactionResult compactRooms(Predicate<String> isKnownUser, int maxRooms, long throttleMillis)
+        throws MatrixMessageException;
+
+    /**
+     * Returns a snapshot of the service's runtime state for monitoring.
+     * @return The current statistics
+     */
+    MatrixServiceStats getStats();
+
+    /**
+     * Drops every entry of the direct message room cache.
+     */
+    void flushRoomCache();
+
+    /**
+     * Fills the direct message room cache from the bot's joined rooms.
+     * @return The number of cached rooms afterwards
+     * @throws MatrixMessageException if the joined rooms cannot be listed
+     */
+    int warmRoomCache() throws MatrixMessageException;
+
+    /**
+     * Checks that the homeserver still accepts the bot token. The request also keeps pooled connections warm.
+     * @return The health of the client
+     */
+    ClientHealth checkHealth();
+
+    /**
+     * @return The health reported by the last check, or by the last send rejected for its token
+     */
+    ClientHealth getHealth();
+
+    /**
+     * @return true while sends to the homeserver fail fast after repeated failures
+     */
+    boolean isCircuitOpen();
+
+    /**
+     * Stops accepting new sends, waits for the sends in flight to complete within the grace period,
+     * then stops background listeners and closes the client and its connections.
+     * @param graceMillis The maximum time to wait for sends in flight
+     */
+    void shutdown(long graceMillis);
 
     /**
      * Checks if the Matrix service is properly initialized and ready to send messages.
@@ -2,14 +2,31 @@ package org.keycloak.matrix;
 
 import io.github.ma1uta.matrix.Event;
 import io.github.ma1uta.matrix.client.MatrixClient;
+import io.github.ma1uta.matrix.client.model.event.SendEventResponse;
 import io.github.ma1uta.matrix.client.model.room.CreateRoomRequest;
+import io.github.ma1uta.matrix.event.RoomMember;
 import io.github.ma1uta.matrix.event.RoomMessage;
 import io.github.ma1uta.matrix.event.content.RoomMessageContent;
 import org.jboss.logging.Logger;
 
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of the MatrixService interface using the Matrix SDK.
@@ -17,82 +34,667 @@ import java.util.concurrent.CompletionException;
 public class MatrixServiceImpl implements MatrixService {
     private static final Logger logger = Logger.getLogger(MatrixServiceImpl.class);
     
-    private MatrixClient client;
+    private volatile MatrixClient client;
+    private volatile ClientGeneration generation;
+    private volatile MatrixSyncListener syncListener;
+    private final DirectRoomIndex roomIndex;
+    private final SyncTokenStore syncTokenStore;
+    private final AtomicInteger inFlightSends = new AtomicInteger();
+    private final LatencyRecorder sendLatency = new LatencyRecorder(1024);
+    private final AtomicLong roomsReclaimed = new AtomicLong();
+    private final CircuitBreaker circuitBreaker;
     private String accessToken;
+    private String botUserId;
     private volatile boolean initialized = false;
+    private volatile boolean shuttingDown = false;
+    private volatile ClientHealth health = ClientHealth.UNKNOWN;
+
+    // Compaction state, guarded by compactionLock rather than by the service monitor taken by initialization
+    private final Object compactionLock = new Object();
+    private List<String> compactionSnapshot = List.of();
+    private int compactionCursor = 0;
+    private final Set<String> compactionLeft = new HashSet<>();
+
+    public MatrixServiceImpl() {
+        this(new SyncTokenStore(null), new DirectRoomIndex(), new CircuitBreaker(5, 30000L));
+    }
+
+    /**
+     * @param syncTokenStore Where the room index sync position is persisted between restarts
+     * @param roomIndex The direct message room index, possibly shared with other cluster nodes
+     * @param circuitBreaker The circuit breaker guarding sends to the homeserver
+     */
+    MatrixServiceImpl(SyncTokenStore syncTokenStore, DirectRoomIndex roomIndex, CircuitBreaker circuitBreaker) {
+        this.syncTokenStore = syncTokenStore;
+        this.roomIndex = roomIndex;
+        this.circuitBreaker = circuitBreaker;
+    }
 
     @Override
     public void initialize(MatrixConfig config) throws MatrixInitializationException {
+        MatrixClient newClient = null;
         try {
-            client = new MatrixClient.Builder()
-                .homeserver(config.getServerUrl())
-                .accessToken(config.getBotAccessToken())
-                .build();
-
-            this.accessToken = config.getBotAccessToken();
+            newClient = createClient(config);
 
-            // Verify the token is valid by trying to get account data
-            client.auth().whoami().join();
-            
-            initialized = true;
-            logger.info("Matrix service initialized successfully");
+            // Verify the token before replacing anything, a failed re-initialization leaves the current client as is
+            newClient.auth().whoami().join();
         } catch (Exception e) {
-            initialized = false;
+            closeClient(newClient);
+            if (client == null) {
+                initialized = false;
+            }
             throw new MatrixInitializationException("Failed to initialize Matrix client", e);
         }
+
+        this.accessToken = config.getBotAccessToken();
+        this.botUserId = config.getBotUserId();
+
+        // The index is kept across re-initializations, possibly shared with other nodes, and membership
+        // changes are followed from the last synced position. Pending approvals carry over to the new listener.
+        MatrixSyncListener previousListener = syncListener;
+        if (previousListener != null) {
+            previousListener.stop();
+        }
+        syncListener = new MatrixSyncListener(newClient, botUserId, roomIndex, syncTokenStore,
+            MatrixClientRegistry.key(config), previousListener);
+
+        // Sends started on the replaced client complete on it, it is closed once the last of them is done
+        ClientGeneration previousGeneration = generation;
+        client = newClient;
+        generation = new ClientGeneration(newClient);
+        if (previousGeneration != null) {
+            previousGeneration.retire();
+        }
+
+        syncListener.start();
+        health = ClientHealth.HEALTHY;
+        initialized = true;
+        logger.info("Matrix service initialized successfully");
+    }
+
+    MatrixClient createClient(MatrixConfig config) {
+        return new MatrixClient.Builder()
+            .homeserver(config.getServerUrl())
+            .accessToken(config.getBotAccessToken())
+            .build();
+    }
+
+    @Override
+    public String sendOTP(String matrixUserId, String otp) throws MatrixMessageException {
+        if (!initialized) {
+            throw new MatrixMessageException("Matrix service not initialized");
+        }
+
+        if (!circuitBreaker.allowRequest()) {
+            throw new MatrixMessageException("Circuit to the Matrix homeserver is open");
+        }
+
+        Throwable error = null;
+        try {
+            Send send = beginSend();
+            try (MatrixSpan span = MatrixTracing.start("matrix.send").tag(MatrixTracing.TAG_BOT, botUserId)) {
+                try {
+                    // Create or get direct message room with the user
+                    String roomId = createOrGetDirectMessageRoom(matrixUserId);
+
+                    // Send the message
+                    try (MatrixSpan sendSpan = MatrixTracing.start("matrix.message.send")) {
+                        sendText(roomId, otp).join();
+                    }
+
+                    logger.debug("OTP sent successfully to " + matrixUserId);
+                    return roomId;
+                } catch (CompletionException | MatrixMessageException e) {
+                    span.error(e);
+                    throw e;
+                }
+            } catch (CompletionException e) {
+                logger.error("Failed to send OTP to " + matrixUserId, e);
+                throw new MatrixMessageException("Failed to send OTP", e);
+            } finally {
+                endSend(send);
+            }
+        } catch (Throwable e) {
+            error = e;
+            throw e;
+        } finally {
+            recordOutcome(error);
+        }
+    }
+
+    @Override
+    public boolean isCircuitOpen() {
+        return circuitBreaker.getState() == CircuitBreaker.State.OPEN;
     }
 
     @Override
-    public void sendOTP(String matrixUserId, String otp) throws MatrixMessageException {
+    public void sendToRoom(String roomId, String message) throws MatrixMessageException {
         if (!initialized) {
             throw new MatrixMessageException("Matrix service not initialized");
         }
 
+        if (!circuitBreaker.allowRequest()) {
+            throw new MatrixMessageException("Circuit to the Matrix homeserver is open");
+        }
+
+        Throwable error = null;
+        try {
+            Send send = beginSend();
+            try (MatrixSpan span = MatrixTracing.start("matrix.message.send").tag(MatrixTracing.TAG_BOT, botUserId)) {
+                sendText(roomId, message).join();
+                logger.debug("Message sent successfully to room " + roomId);
+            } catch (CompletionException e) {
+                logger.error("Failed to send message to room " + roomId, e);
+                throw new MatrixMessageException("Failed to send message", e);
+            } finally {
+                endSend(send);
+            }
+        } catch (Throwable e) {
+            error = e;
+            throw e;
+        } finally {
+            recordOutcome(error);
+        }
+    }
+
+    /**
+     * Reports the outcome of a guarded send to the circuit breaker. Only transport errors, server errors and
+     * rate limiting count as failures; an error answered by the homeserver about the recipient (unknown user,
+     * forbidden invite...) proves the homeserver is up, and other errors, such as a send refused during
+     * shutdown, say nothing about it but still release a half-open trial.
+     */
+    private void recordOutcome(Throwable error) {
+        if (error != null && isTokenRejected(error)) {
+            // Lets the next login bringing another token rebuild the client without waiting for the probe
+            health = ClientHealth.TOKEN_REJECTED;
+        }
+        if (error == null) {
+            circuitBreaker.recordSuccess();
+        } else if (isHomeserverFailure(error)) {
+            circuitBreaker.recordFailure();
+        } else if (hasHomeserverResponse(error)) {
+            circuitBreaker.recordSuccess();
+        } else {
+            circuitBreaker.recordIgnored();
+        }
+    }
+
+    private static boolean isHomeserverFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ProcessingException || cause instanceof IOException
+                    || cause instanceof TimeoutException) {
+                return true;
+            }
+            if (cause instanceof WebApplicationException) {
+                int status = ((WebApplicationException) cause).getResponse().getStatus();
+                return status >= 500 || status == 429;
+            }
+            String message = cause.getMessage();
+            if (message != null && message.contains("M_LIMIT_EXCEEDED")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasHomeserverResponse(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof WebApplicationException) {
+                return true;
+            }
+            String message = cause.getMessage();
+            if (message != null && message.contains("\"errcode\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String sendApprovalRequest(String matrixUserId, String message, int validitySeconds)
+            throws MatrixMessageException {
+        if (!initialized) {
+            throw new MatrixMessageException("Matrix service not initialized");
+        }
+
+        Send send = beginSend();
         try {
-            // Create or get direct message room with the user
             String roomId = createOrGetDirectMessageRoom(matrixUserId);
-            
-            // Create message content
-            RoomMessageContent content = new RoomMessageContent();
-            content.setBody(otp);
-            content.setMsgtype(RoomMessage.TEXT);
+            String eventId = sendText(roomId, message).join().getEventId();
 
-            // Send the message
-            client.event().sendMessage(roomId, content).join();
-            
-            logger.debug("OTP sent successfully to " + matrixUserId);
+            syncListener.register(eventId, matrixUserId, validitySeconds);
+
+            logger.debug("Approval request sent successfully to " + matrixUserId);
+            return eventId;
         } catch (CompletionException e) {
-            logger.error("Failed to send OTP to " + matrixUserId, e);
-            throw new MatrixMessageException("Failed to send OTP", e);
+            logger.error("Failed to send approval request to " + matrixUserId, e);
+            throw new MatrixMessageException("Failed to send approval request", e);
+        } finally {
+            endSend(send);
         }
     }
 
+    @Override
+    public ApprovalState getApprovalState(String eventId) {
+        if (!initialized) {
+            return ApprovalState.EXPIRED;
+        }
+        return syncListener.getState(eventId);
+    }
+
+    @Override
+    public String ensureDirectMessageRoom(String matrixUserId) throws MatrixMessageException {
+        if (!initialized) {
+            throw new MatrixMessageException("Matrix service not initialized");
+        }
+
+        String indexedRoomId = roomIndex.get(matrixUserId);
+        if (indexedRoomId != null) {
+            return indexedRoomId;
+        }
+        try {
+            return createDirectMessageRoom(matrixUserId);
+        } catch (CompletionException e) {
+            throw new MatrixMessageException("Failed to create direct message room", e);
+        }
+    }
+
+    @Override
+    public RoomCompactionResult compactRooms(Predicate<String> isKnownUser, int maxRooms, long throttleMillis)
+            throws MatrixMessageException {
+        if (!initialized) {
+            throw new MatrixMessageException("Matrix service not initialized");
+        }
+
+        synchronized (compactionLock) {
+            RoomCompactionResult result = new RoomCompactionResult();
+            try {
+                if (compactionCursor >= compactionSnapshot.size()) {
+                    compactionSnapshot = client.room().joinedRooms().join();
+                    compactionCursor = 0;
+                    compactionLeft.clear();
+                }
+
+                int end = Math.min(compactionCursor + maxRooms, compactionSnapshot.size());
+                for (; compactionCursor < end; compactionCursor++) {
+                    String roomId = compactionSnapshot.get(compactionCursor);
+                    // Skips the rooms already left as the duplicate of a room scanned before them
+                    if (!compactionLeft.contains(roomId)) {
+                        compactRoom(roomId, isKnownUser, result);
+                    }
+                    result.roomScanned();
+                    Thread.sleep(throttleMillis);
+                }
+                result.setPassCompleted(compactionCursor >= compactionSnapshot.size());
+                roomsReclaimed.addAndGet(result.getRoomsReclaimed());
+            } catch (CompletionException e) {
+                throw new MatrixMessageException("Failed to compact rooms", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return result;
+        }
+    }
+
+    private void compactRoom(String roomId, Predicate<String> isKnownUser, RoomCompactionResult result) {
+        try {
+            Map<String, String> memberships = getMemberships(roomId);
+            Set<String> others = memberships.entrySet().stream()
+                .filter(member -> isPresent(member.getValue()))
+                .map(Map.Entry::getKey)
+                .filter(member -> !member.equals(botUserId))
+                .collect(Collectors.toSet());
+
+            if (others.isEmpty()) {
+                leaveAndForget(roomId);
+                result.abandonedRoomLeft();
+                return;
+            }
+            if (others.size() > 1) {
+                // Not a direct message room
+                return;
+            }
+
+            String userId = others.iterator().next();
+            if (!isKnownUser.test(userId)) {
+                leaveAndForget(roomId);
+                result.orphanedRoomLeft();
+                return;
+            }
+
+            roomIndex.putIfAbsent(userId, roomId);
+            String indexed = roomIndex.peek(userId);
+            if (roomId.equals(indexed)) {
+                return;
+            }
+
+            // The canonical room is the one the user joined: the indexed room may only hold an invite,
+            // or be a room the bot or the user already left
+            String indexedMembership = getCanonicalMembership(indexed, userId);
+            boolean joined = RoomMember.JOIN.equals(memberships.get(userId));
+            if (indexedMembership == null) {
+                roomIndex.put(userId, roomId);
+            } else if (joined && RoomMember.INVITE.equals(indexedMembership)) {
+                roomIndex.put(userId, roomId);
+                leaveAndForget(indexed);
+                compactionLeft.add(indexed);
+                result.duplicateRoomLeft();
+            } else {
+                leaveAndForget(roomId);
+                result.duplicateRoomLeft();
+            }
+        } catch (CompletionException e) {
+            logger.warn("Failed to compact room " + roomId, e);
+        }
+    }
+
+    /**
+     * Returns the membership of every user of a room, the bot included.
+     */
+    private Map<String, String> getMemberships(String roomId) {
+        return client.room().members(roomId).join().stream()
+            .filter(member -> member.getContent() != null && member.getContent().getMembership() != null)
+            .collect(Collectors.toMap(RoomMember::getStateKey, member -> member.getContent().getMembership(),
+                (first, last) -> last));
+    }
+
+    /**
+     * Joined and invited users are both present, so that rooms whose invite
+     * has not been accepted yet are not mistaken for abandoned ones.
+     */
+    private static boolean isPresent(String membership) {
+        return RoomMember.JOIN.equals(membership) || RoomMember.INVITE.equals(membership);
+    }
+
+    /**
+     * @return The membership of the user in the indexed room, or null if the room cannot serve as the
+     *         canonical one because the bot is no longer in it, the user is no longer present or it cannot be read
+     */
+    private String getCanonicalMembership(String roomId, String userId) {
+        try {
+            Map<String, String> memberships = getMemberships(roomId);
+            String membership = memberships.get(userId);
+            if (!RoomMember.JOIN.equals(memberships.get(botUserId)) || !isPresent(membership)) {
+                return null;
+            }
+            return membership;
+        } catch (CompletionException e) {
+            logger.debug("Failed to read indexed room " + roomId, e);
+            return null;
+        }
+    }
+
+    private void leaveAndForget(String roomId) {
+        roomIndex.removeRoom(roomId);
+        client.room().leave(roomId).join();
+        client.room().forget(roomId).join();
+        logger.debug("Left and forgot room " + roomId);
+    }
+
+    @Override
+    public MatrixServiceStats getStats() {
+        return new MatrixServiceStats(
+            initialized,
+            roomIndex.size(),
+            roomIndex.getHits(),
+            roomIndex.getMisses(),
+            inFlightSends.get(),
+            syncListener == null ? 0 : syncListener.getPendingCount(),
+            sendLatency.percentiles(50, 90, 99),
+            roomsReclaimed.get(),
+            health,
+            circuitBreaker.getState().name());
+    }
+
+    @Override
+    public void flushRoomCache() {
+        roomIndex.clear();
+        logger.info("Matrix room cache flushed");
+    }
+
+    @Override
+    public int warmRoomCache() throws MatrixMessageException {
+        if (!initialized) {
+            throw new MatrixMessageException("Matrix service not initialized");
+        }
+
+        try {
+            for (String roomId : client.room().joinedRooms().join()) {
+                Map<String, Object> members = client.room().joinedMembers(roomId).join();
+                if (members.size() == 2) {
+                    members.keySet().stream()
+                        .filter(member -> !member.equals(botUserId))
+                        .forEach(member -> roomIndex.putIfAbsent(member, roomId));
+                }
+            }
+            logger.info("Matrix room cache warmed with " + roomIndex.size() + " rooms");
+            return roomIndex.size();
+        } catch (CompletionException e) {
+            throw new MatrixMessageException("Failed to warm room cache", e);
+        }
+    }
+
+    @Override
+    public ClientHealth checkHealth() {
+        MatrixClient current = client;
+        if (!initialized || current == null) {
+            return ClientHealth.UNKNOWN;
+        }
+
+        try {
+            current.auth().whoami().join();
+            health = ClientHealth.HEALTHY;
+        } catch (CompletionException e) {
+            health = isTokenRejected(e) ? ClientHealth.TOKEN_REJECTED : ClientHealth.UNREACHABLE;
+            logger.warn("Matrix health check for " + botUserId + " failed: " + health, e);
+        }
+        return health;
+    }
+
+    private static boolean isTokenRejected(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NotAuthorizedException) {
+                return true;
+            }
+            String message = cause.getMessage();
+            if (message != null && (message.contains("M_UNKNOWN_TOKEN") || message.contains("M_MISSING_TOKEN"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void shutdown(long graceMillis) {
+        shuttingDown = true;
+
+        long deadline = System.currentTimeMillis() + graceMillis;
+        synchronized (inFlightSends) {
+            long remaining = graceMillis;
+            while (inFlightSends.get() > 0 && remaining > 0) {
+                try {
+                    inFlightSends.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        if (inFlightSends.get() > 0) {
+            logger.warn("Closing Matrix client with " + inFlightSends.get() + " sends still in flight");
+        }
+
+        initialized = false;
+        if (syncListener != null) {
+            syncListener.stop();
+        }
+        if (generation != null) {
+            generation.close();
+        }
+        client = null;
+        generation = null;
+        logger.info("Matrix service shut down");
+    }
+
+    /**
+     * Registers a send as in flight, refusing it once shutdown has started.
+     * @return The send, holding its start time and the client generation it started on
+     */
+    private Send beginSend() throws MatrixMessageException {
+        inFlightSends.incrementAndGet();
+        if (shuttingDown) {
+            releaseSend(null);
+            throw new MatrixMessageException("Matrix service is shutting down");
+        }
+        ClientGeneration current = generation;
+        if (current != null) {
+            current.acquire();
+        }
+        return new Send(System.nanoTime(), current);
+    }
+
+    private void endSend(Send send) {
+        sendLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - send.start));
+        releaseSend(send.generation);
+    }
+
+    private void releaseSend(ClientGeneration sendGeneration) {
+        if (sendGeneration != null) {
+            sendGeneration.release();
+        }
+        if (inFlightSends.decrementAndGet() == 0 && shuttingDown) {
+            synchronized (inFlightSends) {
+                inFlightSends.notifyAll();
+            }
+        }
+    }
+
+    private static void closeClient(MatrixClient matrixClient) {
+        if (matrixClient == null) {
+            return;
+        }
+        try {
+            matrixClient.close();
+        } catch (Exception e) {
+            logger.warn("Failed to close Matrix client", e);
+        }
+    }
+
+    @Override
+    public ClientHealth getHealth() {
+        return health;
+    }
+
     @Override
     public boolean isInitialized() {
         return initialized;
     }
 
+    private CompletableFuture<SendEventResponse> sendText(String roomId, String body) {
+        RoomMessageContent content = new RoomMessageContent();
+        content.setBody(body);
+        content.setMsgtype(RoomMessage.TEXT);
+        return client.event().sendMessage(roomId, content);
+    }
+
     private String createOrGetDirectMessageRoom(String userId) throws MatrixMessageException {
+        try (MatrixSpan span = MatrixTracing.start("matrix.room.resolve").tag(MatrixTracing.TAG_BOT, botUserId)) {
+            String indexedRoomId = roomIndex.get(userId);
+            span.tag(MatrixTracing.TAG_CACHE_HIT, indexedRoomId != null);
+            if (indexedRoomId != null) {
+                return indexedRoomId;
+            }
+            return findOrCreateDirectMessageRoom(userId, span);
+        }
+    }
+
+    private String findOrCreateDirectMessageRoom(String userId, MatrixSpan span) throws MatrixMessageException {
+        int scanned = 0;
         try {
-            // First try to find existing direct message room
+            // First try to find existing direct message room, indexing every DM seen on the way
             List<String> rooms = client.room().joinedRooms().join();
             
             for (String roomId : rooms) {
+                scanned++;
                 Map<String, Object> members = client.room().joinedMembers(roomId).join();
-                if (members.size() == 2 && members.containsKey(userId)) {
-                    return roomId;
+                if (members.size() == 2) {
+                    members.keySet().stream()
+                        .filter(member -> !member.equals(botUserId))
+                        .forEach(member -> roomIndex.putIfAbsent(member, roomId));
+                    if (members.containsKey(userId)) {
+                        roomIndex.put(userId, roomId);
+                        return roomId;
+                    }
                 }
             }
 
             // If no existing room found, create a new one
-            CreateRoomRequest createRequest = new CreateRoomRequest();
-            createRequest.setDirect(true);
-            createRequest.setInvite(List.of(userId));
-            createRequest.setPresetEnum(CreateRoomRequest.Preset.PRIVATE_CHAT);
-
-            return client.room().createRoom(createRequest).join().getRoomId();
+            return createDirectMessageRoom(userId);
         } catch (CompletionException e) {
+            span.error(e);
             throw new MatrixMessageException("Failed to create or get direct message room", e);
+        } finally {
+            span.tag(MatrixTracing.TAG_ROOMS_SCANNED, scanned);
+        }
+    }
+
+    private String createDirectMessageRoom(String userId) {
+        CreateRoomRequest createRequest = new CreateRoomRequest();
+        createRequest.setDirect(true);
+        createRequest.setInvite(List.of(userId));
+        createRequest.setPresetEnum(CreateRoomRequest.Preset.PRIVATE_CHAT);
+
+        String roomId = client.room().createRoom(createRequest).join().getRoomId();
+        roomIndex.put(userId, roomId);
+        return roomId;
+    }
+
+    private static final class Send {
+        private final long start;
+        private final ClientGeneration generation;
+
+        Send(long start, ClientGeneration generation) {
+            this.start = start;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A client with the sends started while it was the current one. A replaced client is only closed once
+     * these sends completed, so that a re-initialization does not abort them.
+     */
+    private static final class ClientGeneration {
+        private final MatrixClient client;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean retired = false;
+
+        ClientGeneration(MatrixClient client) {
+            this.client = client;
+        }
+
+        void acquire() {
+            inFlight.incrementAndGet();
+        }
+
+        void release() {
+            if (inFlight.decrementAndGet() == 0 && retired) {
+                close();
+            }
+        }
+
+        void retire() {
+            retired = true;
+            if (inFlight.get() == 0) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                closeClient(client);
+            }
         }
     }
-}
\ No newline at end of file
+}
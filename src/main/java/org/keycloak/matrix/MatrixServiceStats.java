@@ -0,0 +1,101 @@
+package org.keycloak.matrix;
+
+/**
+ * Point-in-time view of the runtime state of a Matrix service.
+ */
+public class MatrixServiceStats {
+    private final boolean initialized;
+    private final int roomCacheSize;
+    private final long roomCacheHits;
+    private final long roomCacheMisses;
+    private final int inFlightSends;
+    private final int pendingApprovals;
+    private final long sendLatencyP50Millis;
+    private final long sendLatencyP90Millis;
+    private final long sendLatencyP99Millis;
+    private final long roomsReclaimed;
+    private final ClientHealth health;
+    private final String circuitState;
+
+    MatrixServiceStats(boolean initialized, int roomCacheSize, long roomCacheHits, long roomCacheMisses,
+                       int inFlightSends, int pendingApprovals, long[] sendLatencyPercentiles, long roomsReclaimed,
+                       ClientHealth health, String circuitState) {
+        this.initialized = initialized;
+        this.roomCacheSize = roomCacheSize;
+        this.roomCacheHits = roomCacheHits;
+        this.roomCacheMisses = roomCacheMisses;
+        this.inFlightSends = inFlightSends;
+        this.pendingApprovals = pendingApprovals;
+        this.sendLatencyP50Millis = sendLatencyPercentiles[0];
+        this.sendLatencyP90Millis = sendLatencyPercentiles[1];
+        this.sendLatencyP99Millis = sendLatencyPercentiles[2];
+        this.roomsReclaimed = roomsReclaimed;
+        this.health = health;
+        this.circuitState = circuitState;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public int getRoomCacheSize() {
+        return roomCacheSize;
+    }
+
+    public long getRoomCacheHits() {
+        return roomCacheHits;
+    }
+
+    public long getRoomCacheMisses() {
+        return roomCacheMisses;
+    }
+
+    /**
+     * @return The share of room lookups answered by the room cache, between 0 and 1
+     */
+    public double getRoomCacheHitRatio() {
+        long lookups = roomCacheHits + roomCacheMisses;
+        return lookups == 0 ? 0.0 : (double) roomCacheHits / lookups;
+    }
+
+    public int getInFlightSends() {
+        return inFlightSends;
+    }
+
+    /**
+     * @return The number of approval prompts waiting for a reaction
+     */
+    public int getPendingApprovals() {
+        return pendingApprovals;
+    }
+
+    public long getSendLatencyP50Millis() {
+        return sendLatencyP50Millis;
+    }
+
+    public long getSendLatencyP90Millis() {
+        return sendLatencyP90Millis;
+    }
+
+    public long getSendLatencyP99Millis() {
+        return sendLatencyP99Millis;
+    }
+
+    public long getRoomsReclaimed() {
+        return roomsReclaimed;
+    }
+
+    /**
+     * @return The result of the last background health check
+     */
+    public ClientHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @return The state of the circuit breaker guarding sends: CLOSED, OPEN or HALF_OPEN
+     */
+    public String getCircuitState() {
+        return circuitState;
+    }
+}
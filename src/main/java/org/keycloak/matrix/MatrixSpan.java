@@ -0,0 +1,46 @@
+package org.keycloak.matrix;
+
+/**
+ * A traced stage of the Matrix 2FA pipeline. Closing the span ends the stage.
+ */
+public interface MatrixSpan extends AutoCloseable {
+    MatrixSpan NOOP = new MatrixSpan() {
+        @Override
+        public MatrixSpan tag(String key, String value) {
+            return this;
+        }
+
+        @Override
+        public MatrixSpan tag(String key, boolean value) {
+            return this;
+        }
+
+        @Override
+        public MatrixSpan tag(String key, long value) {
+            return this;
+        }
+
+        @Override
+        public void error(Throwable error) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    MatrixSpan tag(String key, String value);
+
+    MatrixSpan tag(String key, boolean value);
+
+    MatrixSpan tag(String key, long value);
+
+    /**
+     * Marks the stage as failed.
+     * @param error The cause of the failure
+     */
+    void error(Throwable error);
+
+    @Override
+    void close();
+}
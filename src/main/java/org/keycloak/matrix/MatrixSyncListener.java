@@ -0,0 +1,361 @@
+package org.keycloak.matrix;
+
+import io.github.ma1uta.matrix.Event;
+import io.github.ma1uta.matrix.client.MatrixClient;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.Rooms;
+import io.github.ma1uta.matrix.client.model.sync.State;
+import io.github.ma1uta.matrix.client.model.sync.SyncParams;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.client.model.sync.Timeline;
+import io.github.ma1uta.matrix.event.RawEvent;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.content.RawEventContent;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single long-poll /sync loop per bot. It resolves pending login approvals from reactions and keeps the
+ * direct message room index up to date from membership and tombstone events, so that rooms left by users,
+ * rooms the bot was removed from and upgraded rooms are dropped from the index as soon as they change.
+ */
+class MatrixSyncListener implements Runnable {
+    private static final Logger logger = Logger.getLogger(MatrixSyncListener.class);
+
+    static final String APPROVE_KEY = "👍";
+    static final String DENY_KEY = "👎";
+
+    private static final String REACTION_EVENT_TYPE = "m.reaction";
+    private static final String MEMBER_EVENT_TYPE = "m.room.member";
+    private static final String TOMBSTONE_EVENT_TYPE = "m.room.tombstone";
+    private static final String SYNC_FILTER = "{"
+        + "\"presence\":{\"types\":[]},"
+        + "\"account_data\":{\"types\":[]},"
+        + "\"room\":{"
+        + "\"include_leave\":true,"
+        + "\"state\":{\"types\":[\"" + MEMBER_EVENT_TYPE + "\",\"" + TOMBSTONE_EVENT_TYPE + "\"],\"lazy_load_members\":true},"
+        + "\"ephemeral\":{\"types\":[]},"
+        + "\"account_data\":{\"types\":[]},"
+        + "\"timeline\":{\"types\":[\"" + REACTION_EVENT_TYPE + "\",\"" + MEMBER_EVENT_TYPE + "\",\""
+        + TOMBSTONE_EVENT_TYPE + "\"]}"
+        + "}}";
+    // Used for the very first sync of a bot: returns no room at all, only a token to sync from
+    private static final String EMPTY_FILTER = "{\"presence\":{\"types\":[]},\"account_data\":{\"types\":[]},"
+        + "\"room\":{\"rooms\":[]}}";
+    private static final long SYNC_TIMEOUT_MILLIS = 30000L;
+    private static final long RETRY_DELAY_MILLIS = 5000L;
+    // Bounds the reactions kept for prompts not registered yet, so that reactions to unrelated events cannot pile up
+    private static final int MAX_EARLY_REACTIONS = 1000;
+
+    private final MatrixClient client;
+    private final String botUserId;
+    private final DirectRoomIndex roomIndex;
+    private final SyncTokenStore tokenStore;
+    private final String storeKey;
+    private final Map<String, PendingApproval> pending;
+    private final Map<String, EarlyReactions> earlyReactions;
+
+    private volatile boolean running = false;
+    private Thread thread;
+    private String since;
+
+    /**
+     * @param previous The listener being replaced, whose pending approvals are taken over, or null
+     */
+    MatrixSyncListener(MatrixClient client, String botUserId, DirectRoomIndex roomIndex,
+                       SyncTokenStore tokenStore, String storeKey, MatrixSyncListener previous) {
+        this.client = client;
+        this.botUserId = botUserId;
+        this.roomIndex = roomIndex;
+        this.tokenStore = tokenStore;
+        this.storeKey = storeKey;
+        // Shared rather than copied, so that a prompt registered on the old listener during the swap is kept
+        this.pending = previous == null ? new ConcurrentHashMap<>() : previous.pending;
+        this.earlyReactions = previous == null ? new ConcurrentHashMap<>() : previous.earlyReactions;
+    }
+
+    /**
+     * Registers a sent prompt so that reactions to it are tracked.
+     * @param eventId The event ID of the prompt
+     * @param matrixUserId The only user allowed to answer the prompt
+     * @param validitySeconds The number of seconds the prompt can be answered for
+     */
+    void register(String eventId, String matrixUserId, int validitySeconds) {
+        pending.put(eventId, new PendingApproval(matrixUserId, Time.currentTime() + validitySeconds));
+        // The user may have reacted before the prompt's send returned and the prompt was registered
+        applyEarlyReactions(eventId);
+    }
+
+    /**
+     * Returns the state of a registered prompt. Answered and expired prompts are removed from the index.
+     * @param eventId The event ID of the prompt
+     * @return The approval state
+     */
+    ApprovalState getState(String eventId) {
+        PendingApproval approval = pending.get(eventId);
+        if (approval == null) {
+            return ApprovalState.EXPIRED;
+        }
+        if (approval.state != ApprovalState.PENDING) {
+            pending.remove(eventId);
+            return approval.state;
+        }
+        if (approval.isExpired()) {
+            pending.remove(eventId);
+            return ApprovalState.EXPIRED;
+        }
+        return ApprovalState.PENDING;
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        since = tokenStore.load(storeKey);
+        thread = new Thread(this, "matrix-2fa-sync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                SyncResponse response = client.sync().sync(SyncParams.builder()
+                    .filter(since == null ? EMPTY_FILTER : SYNC_FILTER)
+                    .since(since)
+                    .fullState(false)
+                    .timeout(since == null ? 0L : SYNC_TIMEOUT_MILLIS)
+                    .build()).join();
+
+                // stop() does not abort a long poll in progress, a stopped listener must not apply its
+                // result nor overwrite the position saved by the listener replacing it
+                if (!running) {
+                    return;
+                }
+                handleSync(response);
+                since = response.getNextBatch();
+                synchronized (this) {
+                    if (!running) {
+                        return;
+                    }
+                    tokenStore.save(storeKey, since);
+                }
+                pending.values().removeIf(PendingApproval::isStale);
+                earlyReactions.values().removeIf(EarlyReactions::isStale);
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                logger.warn("Matrix sync failed, retrying in " + RETRY_DELAY_MILLIS + " ms", e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    void handleSync(SyncResponse response) {
+        Rooms rooms = response.getRooms();
+        if (rooms == null) {
+            return;
+        }
+
+        if (rooms.getJoin() != null) {
+            for (Map.Entry<String, JoinedRoom> room : rooms.getJoin().entrySet()) {
+                List<Event> events = new ArrayList<>();
+                addStateEvents(events, room.getValue().getState());
+                addTimelineEvents(events, room.getValue().getTimeline());
+                for (Event event : events) {
+                    handleEvent(room.getKey(), event);
+                }
+            }
+        }
+
+        // Rooms the bot left or was removed from can no longer be used to reach anybody
+        if (rooms.getLeave() != null) {
+            for (String roomId : rooms.getLeave().keySet()) {
+                roomIndex.removeRoom(roomId);
+                logger.debug("Bot left room " + roomId + ", removed from the room index");
+            }
+        }
+    }
+
+    private void addStateEvents(List<Event> events, State state) {
+        if (state != null && state.getEvents() != null) {
+            events.addAll(state.getEvents());
+        }
+    }
+
+    private void addTimelineEvents(List<Event> events, Timeline timeline) {
+        if (timeline != null && timeline.getEvents() != null) {
+            events.addAll(timeline.getEvents());
+        }
+    }
+
+    private void handleEvent(String roomId, Event event) {
+        if (REACTION_EVENT_TYPE.equals(event.getType()) && event instanceof RawEvent) {
+            handleReaction((RawEvent) event);
+        } else if (event instanceof RoomMember) {
+            handleMembership(roomId, (RoomMember) event);
+        } else if (TOMBSTONE_EVENT_TYPE.equals(event.getType())) {
+            // The room was upgraded, the next send resolves the user's room again
+            roomIndex.removeRoom(roomId);
+            logger.debug("Room " + roomId + " was upgraded, removed from the room index");
+        }
+    }
+
+    private void handleMembership(String roomId, RoomMember event) {
+        if (event.getContent() == null) {
+            return;
+        }
+        String membership = event.getContent().getMembership();
+        if (!RoomMember.LEAVE.equals(membership) && !RoomMember.BAN.equals(membership)) {
+            return;
+        }
+
+        if (botUserId.equals(event.getStateKey())) {
+            roomIndex.removeRoom(roomId);
+        } else {
+            roomIndex.remove(event.getStateKey(), roomId);
+        }
+        logger.debug(event.getStateKey() + " left room " + roomId + ", updated the room index");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleReaction(RawEvent event) {
+        RawEventContent content = event.getContent();
+        if (content == null || content.getProperties() == null) {
+            return;
+        }
+        Object relatesTo = content.getProperties().get("m.relates_to");
+        if (!(relatesTo instanceof Map)) {
+            return;
+        }
+        Map<String, Object> relation = (Map<String, Object>) relatesTo;
+        String eventId = String.valueOf(relation.get("event_id"));
+        String key = normalizeKey(relation.get("key"));
+        if (!APPROVE_KEY.equals(key) && !DENY_KEY.equals(key)) {
+            return;
+        }
+
+        PendingApproval approval = pending.get(eventId);
+        if (approval != null) {
+            approval.answer(event.getSender(), key);
+            return;
+        }
+
+        // Kept until the prompt is registered, then applied to it
+        if (earlyReactions.size() >= MAX_EARLY_REACTIONS && !earlyReactions.containsKey(eventId)) {
+            logger.debug("Too many reactions to unknown events, ignoring reaction to " + eventId);
+            return;
+        }
+        String sender = event.getSender();
+        if (sender == null) {
+            return;
+        }
+        earlyReactions.compute(eventId, (id, reactions) -> {
+            EarlyReactions kept = reactions == null ? new EarlyReactions() : reactions;
+            kept.keysBySender.put(sender, key);
+            return kept;
+        });
+        // The prompt may have been registered while the reaction was being kept
+        if (pending.containsKey(eventId)) {
+            applyEarlyReactions(eventId);
+        }
+    }
+
+    /**
+     * Strips the emoji presentation selector and skin tone modifiers from a reaction key, so that a thumb
+     * sent by a client with another presentation or skin tone counts as the plain one.
+     * @return The normalized key, or null if the key is not a string
+     */
+    static String normalizeKey(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        StringBuilder normalized = new StringBuilder();
+        ((String) key).codePoints()
+            .filter(codePoint -> codePoint != 0xFE0F && (codePoint < 0x1F3FB || codePoint > 0x1F3FF))
+            .forEach(normalized::appendCodePoint);
+        return normalized.toString();
+    }
+
+    private void applyEarlyReactions(String eventId) {
+        EarlyReactions reactions = earlyReactions.remove(eventId);
+        PendingApproval approval = pending.get(eventId);
+        if (reactions == null || approval == null) {
+            return;
+        }
+        reactions.keysBySender.forEach(approval::answer);
+    }
+
+    private static class PendingApproval {
+        // Answered prompts are kept a little longer so the polling login form can pick up the decision
+        private static final int RETENTION_SECONDS = 60;
+
+        private final String matrixUserId;
+        private final int expiryTime;
+        private volatile ApprovalState state = ApprovalState.PENDING;
+
+        PendingApproval(String matrixUserId, int expiryTime) {
+            this.matrixUserId = matrixUserId;
+            this.expiryTime = expiryTime;
+        }
+
+        boolean isExpired() {
+            return Time.currentTime() > expiryTime;
+        }
+
+        boolean isStale() {
+            return Time.currentTime() > expiryTime + RETENTION_SECONDS;
+        }
+
+        void answer(String sender, String key) {
+            if (isExpired() || !matrixUserId.equals(sender)) {
+                return;
+            }
+            if (APPROVE_KEY.equals(key)) {
+                state = ApprovalState.APPROVED;
+            } else if (DENY_KEY.equals(key)) {
+                state = ApprovalState.DENIED;
+            }
+        }
+    }
+
+    /**
+     * Latest approval reaction of each sender to an event that is not a registered prompt yet.
+     */
+    private static class EarlyReactions {
+        // Long enough to cover the time between the prompt being delivered and its send returning
+        private static final int RETENTION_SECONDS = 30;
+
+        private final int receivedTime = Time.currentTime();
+        private final Map<String, String> keysBySender = new ConcurrentHashMap<>();
+
+        boolean isStale() {
+            return Time.currentTime() > receivedTime + RETENTION_SECONDS;
+        }
+    }
+}
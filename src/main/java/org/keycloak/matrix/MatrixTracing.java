@@ -0,0 +1,68 @@
+package org.keycloak.matrix;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Entry point for tracing the Matrix 2FA pipeline. Spans are exported through the OpenTelemetry API
+ * when it is on the classpath and tracing is enabled, and are no-ops otherwise. Independently of that,
+ * stages are recorded as Java Flight Recorder events when the runtime includes JFR.
+ */
+public final class MatrixTracing {
+    private static final Logger logger = Logger.getLogger(MatrixTracing.class);
+    private static final String OPENTELEMETRY_CLASS = "io.opentelemetry.api.GlobalOpenTelemetry";
+
+    static final String TAG_REALM = "keycloak.realm";
+    static final String TAG_BOT = "matrix.bot";
+    static final String TAG_CACHE_HIT = "matrix.room.cache_hit";
+    static final String TAG_ROOMS_SCANNED = "matrix.room.scanned";
+
+    private static final boolean JFR_AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    private static volatile OpenTelemetryTracing tracing;
+
+    private MatrixTracing() {
+    }
+
+    /**
+     * Enables or disables tracing. Enabling has no effect if the OpenTelemetry API is not available.
+     * @param enabled Whether spans should be exported
+     */
+    static synchronized void init(boolean enabled) {
+        if (!enabled) {
+            tracing = null;
+            return;
+        }
+        try {
+            Class.forName(OPENTELEMETRY_CLASS, false, MatrixTracing.class.getClassLoader());
+            tracing = new OpenTelemetryTracing();
+            logger.info("Matrix 2FA tracing enabled");
+        } catch (ClassNotFoundException e) {
+            tracing = null;
+            logger.debug("OpenTelemetry API not found, Matrix 2FA tracing disabled");
+        }
+    }
+
+    /**
+     * Starts a span as a child of the current trace context and makes it current until it is closed.
+     * @param name The span name
+     * @return The started span, to be closed on the same thread
+     */
+    public static MatrixSpan start(String name) {
+        OpenTelemetryTracing current = tracing;
+        MatrixSpan span = current == null ? MatrixSpan.NOOP : current.start(name);
+        return JFR_AVAILABLE ? new JfrSpan(name, span) : span;
+    }
+
+    /**
+     * Binds a task to the current trace context, so that the spans it starts on another thread belong to
+     * the same trace. The task is returned as is when tracing is disabled.
+     * @param task The task to run on another thread
+     * @return The task, running within the trace context current at the time of this call
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        OpenTelemetryTracing current = tracing;
+        return current == null ? task : current.wrap(task);
+    }
+}
@@ -3,7 +3,12 @@ package org.keycloak.matrix;
 import org.keycloak.common.util.Time;
 import org.keycloak.models.UserModel;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class for OTP generation and validation.
@@ -12,6 +17,25 @@ public class OTPUtil {
     private static final String OTP_ATTRIBUTE = "matrix_2fa_otp";
     private static final String OTP_EXPIRY_ATTRIBUTE = "matrix_2fa_otp_expiry";
     private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int SWEEP_INTERVAL_SECONDS = 60;
+
+    // Attempt counters by user and OTP expiry time, shared by every login session of the user on this node
+    private static final ConcurrentMap<String, Attempts> ATTEMPTS = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_SWEEP = new AtomicInteger();
+
+    /**
+     * Outcome of a guess, see {@link #verifyOTP}.
+     */
+    public enum AttemptResult {
+        /** The OTP matched and has been consumed. */
+        VALID,
+        /** The OTP did not match, it is kept and can be guessed again. */
+        RETRY,
+        /** The attempt limit was reached and the OTP has been discarded. */
+        TOO_MANY_ATTEMPTS,
+        /** There is no OTP to guess, it has expired or was already discarded. */
+        NO_OTP
+    }
     
     /**
      * Generates a new OTP with the specified length.
@@ -27,7 +51,7 @@ public class OTPUtil {
     }
 
     /**
-     * Stores the OTP and its expiry time in user attributes.
+     * Stores the OTP and its expiry time in user attributes, with a fresh attempt budget.
      * @param user The user model to store the OTP for
      * @param otp The OTP to store
      * @param validitySeconds The number of seconds the OTP should be valid for
@@ -36,10 +60,32 @@ public class OTPUtil {
         int expiryTime = Time.currentTime() + validitySeconds;
         user.setSingleAttribute(OTP_ATTRIBUTE, otp);
         user.setSingleAttribute(OTP_EXPIRY_ATTRIBUTE, String.valueOf(expiryTime));
+        ATTEMPTS.remove(attemptsKey(user, expiryTime));
     }
 
     /**
-     * Validates the provided OTP against the stored one.
+     * Returns the stored OTP if it has not expired, without modifying the user.
+     * @param user The user model to read the OTP from
+     * @return The stored OTP, or null if there is none or it has expired
+     */
+    public static String getValidOTP(UserModel user) {
+        String storedOTP = user.getFirstAttribute(OTP_ATTRIBUTE);
+        String expiryTimeStr = user.getFirstAttribute(OTP_EXPIRY_ATTRIBUTE);
+        if (storedOTP == null || expiryTimeStr == null) {
+            return null;
+        }
+
+        try {
+            return Time.currentTime() > Integer.parseInt(expiryTimeStr) ? null : storedOTP;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Validates the provided OTP against the stored one. The stored OTP is cleared once it has been
+     * used or has expired, but kept after a wrong guess so that it can be retried,
+     * see {@link #verifyOTP} which also enforces the attempt budget.
      * @param user The user model to validate the OTP for
      * @param providedOTP The OTP to validate
      * @return true if the OTP is valid and not expired, false otherwise
@@ -48,9 +94,6 @@ public class OTPUtil {
         String storedOTP = user.getFirstAttribute(OTP_ATTRIBUTE);
         String expiryTimeStr = user.getFirstAttribute(OTP_EXPIRY_ATTRIBUTE);
 
-        // Clear the stored OTP regardless of validation result
-        clearOTP(user);
-
         if (storedOTP == null || expiryTimeStr == null) {
             return false;
         }
@@ -58,21 +101,101 @@ public class OTPUtil {
         try {
             int expiryTime = Integer.parseInt(expiryTimeStr);
             if (Time.currentTime() > expiryTime) {
+                clearOTP(user);
                 return false;
             }
 
-            return storedOTP.equals(providedOTP);
+            if (storedOTP.equals(providedOTP)) {
+                clearOTP(user);
+                return true;
+            }
+            return false;
         } catch (NumberFormatException e) {
+            clearOTP(user);
             return false;
         }
     }
 
     /**
-     * Clears the stored OTP and expiry time from user attributes.
+     * Checks a guess against the stored OTP within the OTP's attempt budget. An attempt is reserved with an
+     * atomic counter before the comparison, so concurrent guesses from any number of login sessions of the
+     * user never get more than maxAttempts comparisons per OTP. Counters live in memory on this node and
+     * are dropped once their OTP has expired.
+     * @param user The user model holding the OTP
+     * @param providedOTP The guessed OTP
+     * @param maxAttempts The number of guesses allowed per OTP
+     * @return Whether the guess matched, can be retried, exhausted the budget, or there was no OTP to guess
+     */
+    public static AttemptResult verifyOTP(UserModel user, String providedOTP, int maxAttempts) {
+        String storedOTP = user.getFirstAttribute(OTP_ATTRIBUTE);
+        String expiryTimeStr = user.getFirstAttribute(OTP_EXPIRY_ATTRIBUTE);
+        if (storedOTP == null || expiryTimeStr == null) {
+            return AttemptResult.NO_OTP;
+        }
+
+        int expiryTime;
+        try {
+            expiryTime = Integer.parseInt(expiryTimeStr);
+        } catch (NumberFormatException e) {
+            clearOTP(user);
+            return AttemptResult.NO_OTP;
+        }
+        int now = Time.currentTime();
+        if (now > expiryTime) {
+            clearOTP(user);
+            return AttemptResult.NO_OTP;
+        }
+        sweepExpiredAttempts(now);
+
+        int attempt = ATTEMPTS.computeIfAbsent(attemptsKey(user, expiryTime), key -> new Attempts(expiryTime))
+            .count.incrementAndGet();
+        if (attempt > maxAttempts) {
+            clearOTP(user);
+            return AttemptResult.TOO_MANY_ATTEMPTS;
+        }
+
+        if (providedOTP != null && MessageDigest.isEqual(storedOTP.getBytes(StandardCharsets.UTF_8),
+                providedOTP.getBytes(StandardCharsets.UTF_8))) {
+            clearOTP(user);
+            return AttemptResult.VALID;
+        }
+        if (attempt == maxAttempts) {
+            clearOTP(user);
+            return AttemptResult.TOO_MANY_ATTEMPTS;
+        }
+        return AttemptResult.RETRY;
+    }
+
+    /**
+     * Clears the stored OTP and its expiry time from user attributes. The attempt counter is kept until the
+     * OTP would have expired, so that guesses already in flight still count against it.
      * @param user The user model to clear the OTP for
      */
     public static void clearOTP(UserModel user) {
         user.removeAttribute(OTP_ATTRIBUTE);
         user.removeAttribute(OTP_EXPIRY_ATTRIBUTE);
     }
+
+    private static String attemptsKey(UserModel user, int expiryTime) {
+        return user.getId() + ":" + expiryTime;
+    }
+
+    /**
+     * Drops the counters of expired OTPs, at most once per sweep interval.
+     */
+    private static void sweepExpiredAttempts(int now) {
+        int sweepAt = NEXT_SWEEP.get();
+        if (now >= sweepAt && NEXT_SWEEP.compareAndSet(sweepAt, now + SWEEP_INTERVAL_SECONDS)) {
+            ATTEMPTS.values().removeIf(attempts -> now > attempts.expiryTime);
+        }
+    }
+
+    private static class Attempts {
+        private final int expiryTime;
+        private final AtomicInteger count = new AtomicInteger();
+
+        Attempts(int expiryTime) {
+            this.expiryTime = expiryTime;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package org.keycloak.matrix;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+
+import java.util.concurrent.Callable;
+
+/**
+ * OpenTelemetry-backed spans. Only loaded once {@link MatrixTracing} has checked that the API is available.
+ */
+class OpenTelemetryTracing {
+    private static final String INSTRUMENTATION_NAME = "keycloak-matrix-2fa";
+
+    private final Tracer tracer = GlobalOpenTelemetry.getTracer(INSTRUMENTATION_NAME);
+
+    MatrixSpan start(String name) {
+        Span span = tracer.spanBuilder(name).startSpan();
+        return new OpenTelemetrySpan(span, span.makeCurrent());
+    }
+
+    <T> Callable<T> wrap(Callable<T> task) {
+        return Context.current().wrap(task);
+    }
+
+    private static class OpenTelemetrySpan implements MatrixSpan {
+        private final Span span;
+        private final Scope scope;
+
+        OpenTelemetrySpan(Span span, Scope scope) {
+            this.span = span;
+            this.scope = scope;
+        }
+
+        @Override
+        public MatrixSpan tag(String key, String value) {
+            span.setAttribute(key, value);
+            return this;
+        }
+
+        @Override
+        public MatrixSpan tag(String key, boolean value) {
+            span.setAttribute(key, value);
+            return this;
+        }
+
+        @Override
+        public MatrixSpan tag(String key, long value) {
+            span.setAttribute(key, value);
+            return this;
+        }
+
+        @Override
+        public void error(Throwable error) {
+            span.recordException(error);
+            span.setStatus(StatusCode.ERROR);
+        }
+
+        @Override
+        public void close() {
+            scope.close();
+            span.end();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.keycloak.matrix;
+
+/**
+ * Outcome of one incremental run of the bot's room compaction.
+ */
+public class RoomCompactionResult {
+    private int roomsScanned;
+    private int abandonedRoomsLeft;
+    private int duplicateRoomsLeft;
+    private int orphanedRoomsLeft;
+    private boolean passCompleted;
+
+    void roomScanned() {
+        roomsScanned++;
+    }
+
+    void abandonedRoomLeft() {
+        abandonedRoomsLeft++;
+    }
+
+    void duplicateRoomLeft() {
+        duplicateRoomsLeft++;
+    }
+
+    void orphanedRoomLeft() {
+        orphanedRoomsLeft++;
+    }
+
+    void setPassCompleted(boolean passCompleted) {
+        this.passCompleted = passCompleted;
+    }
+
+    public int getRoomsScanned() {
+        return roomsScanned;
+    }
+
+    /**
+     * @return The number of rooms left because the user is no longer a member
+     */
+    public int getAbandonedRoomsLeft() {
+        return abandonedRoomsLeft;
+    }
+
+    /**
+     * @return The number of rooms left because the user already has a canonical room with the bot
+     */
+    public int getDuplicateRoomsLeft() {
+        return duplicateRoomsLeft;
+    }
+
+    /**
+     * @return The number of rooms left because no Keycloak user has the member's Matrix ID
+     */
+    public int getOrphanedRoomsLeft() {
+        return orphanedRoomsLeft;
+    }
+
+    public int getRoomsReclaimed() {
+        return abandonedRoomsLeft + duplicateRoomsLeft + orphanedRoomsLeft;
+    }
+
+    /**
+     * @return true if this run reached the end of the joined-room snapshot
+     */
+    public boolean isPassCompleted() {
+        return passCompleted;
+    }
+
+    @Override
+    public String toString() {
+        return "scanned=" + roomsScanned
+            + ", abandoned=" + abandonedRoomsLeft
+            + ", duplicates=" + duplicateRoomsLeft
+            + ", orphaned=" + orphanedRoomsLeft
+            + ", passCompleted=" + passCompleted;
+    }
+}
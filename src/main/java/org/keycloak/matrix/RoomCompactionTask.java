@@ -0,0 +1,112 @@
+package org.keycloak.matrix;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Scheduled task that incrementally removes redundant rooms from every registered bot account.
+ */
+public class RoomCompactionTask implements ScheduledTask {
+    private static final Logger logger = Logger.getLogger(RoomCompactionTask.class);
+
+    private final MatrixClientRegistry registry;
+    private final int batchSize;
+    private final long throttleMillis;
+
+    public RoomCompactionTask(MatrixClientRegistry registry, int batchSize, long throttleMillis) {
+        this.registry = registry;
+        this.batchSize = batchSize;
+        this.throttleMillis = throttleMillis;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        for (Map.Entry<String, MatrixService> entry : registry.getServices().entrySet()) {
+            MatrixService matrixService = entry.getValue();
+            if (!matrixService.isInitialized()) {
+                continue;
+            }
+
+            List<UserLookup> lookups = findUserLookups(session, entry.getKey());
+            if (lookups.isEmpty()) {
+                // Without any realm to check users against, every room would look orphaned
+                logger.debug("Skipping room compaction for " + entry.getKey() + ", no realm uses this bot");
+                continue;
+            }
+
+            try {
+                RoomCompactionResult result = matrixService.compactRooms(
+                    isKnownUser(session, lookups), batchSize, throttleMillis);
+                if (result.getRoomsReclaimed() > 0 || result.isPassCompleted()) {
+                    logger.info("Matrix room compaction for " + entry.getKey() + ": reclaimed "
+                        + result.getRoomsReclaimed() + " rooms (" + result + ")");
+                }
+            } catch (MatrixMessageException e) {
+                logger.warn("Matrix room compaction for " + entry.getKey() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Lists where the users of a bot are looked up: the user ID attribute of every Matrix configuration,
+     * in every realm, that uses the bot either as default bot or as a route.
+     */
+    List<UserLookup> findUserLookups(KeycloakSession session, String botKey) {
+        return session.realms().getRealmsStream()
+            .flatMap(realm -> MatrixConfig.allFromRealm(realm)
+                .map(model -> {
+                    try {
+                        MatrixConfig config = new MatrixConfig(model);
+                        boolean usesBot = MatrixClientRegistry.key(config).equals(botKey)
+                            || config.getRoutes().stream().anyMatch(route -> MatrixClientRegistry.key(route).equals(botKey));
+                        return usesBot ? Optional.of(new UserLookup(realm, config.getUserIdAttribute())) : Optional.<UserLookup>empty();
+                    } catch (IllegalArgumentException e) {
+                        logger.debug("Ignoring invalid Matrix configuration " + model.getAlias() + " of realm " + realm.getName(), e);
+                        return Optional.<UserLookup>empty();
+                    }
+                })
+                .flatMap(Optional::stream))
+            .distinct()
+            .collect(Collectors.toList());
+    }
+
+    Predicate<String> isKnownUser(KeycloakSession session, List<UserLookup> lookups) {
+        return matrixUserId -> lookups.stream().anyMatch(lookup -> session.users()
+            .searchForUserByUserAttributeStream(lookup.realm, lookup.userIdAttribute, matrixUserId)
+            .findAny()
+            .isPresent());
+    }
+
+    static class UserLookup {
+        private final RealmModel realm;
+        private final String userIdAttribute;
+
+        UserLookup(RealmModel realm, String userIdAttribute) {
+            this.realm = realm;
+            this.userIdAttribute = userIdAttribute;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UserLookup)) {
+                return false;
+            }
+            UserLookup other = (UserLookup) o;
+            return realm.getId().equals(other.realm.getId()) && userIdAttribute.equals(other.userIdAttribute);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(realm.getId(), userIdAttribute);
+        }
+    }
+}
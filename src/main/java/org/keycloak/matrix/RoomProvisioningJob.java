@@ -0,0 +1,305 @@
+package org.keycloak.matrix;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Background job that creates or verifies the direct message room of every user of a realm with a Matrix ID.
+ * The room cache of each bot is warmed once per run, then rooms missing from it are created directly, so
+ * each user costs at most one homeserver call. Users are read one page at a time and the offset of the last
+ * finished page is stored as a realm attribute, so an interrupted job resumes where it stopped. Offsets shift
+ * when users are deleted between runs, so a resumed run starts one page before the checkpoint; provisioning
+ * is idempotent and the overlap only costs cache lookups. Deleting more than a page of users between runs
+ * can still make a resumed run skip users; a run started after completion always covers everyone.
+ * <p>
+ * A user whose room is refused by the homeserver's rate limit is retried after the delay the homeserver asks
+ * for, a few times. If it is still refused, the checkpoint is no longer moved past its page: the run goes on
+ * with the next pages but ends as failed, and the next run resumes at that page.
+ */
+public class RoomProvisioningJob implements Runnable {
+    private static final Logger logger = Logger.getLogger(RoomProvisioningJob.class);
+
+    static final String CHECKPOINT_ATTRIBUTE = "matrix2faProvisioningCheckpoint";
+    static final int MAX_RATE_LIMIT_RETRIES = 5;
+    private static final long RATE_LIMIT_BACKOFF_MILLIS = 1000L;
+    private static final Pattern RETRY_AFTER_PATTERN = Pattern.compile("\"retry_after_ms\"\\s*:\\s*(\\d+)");
+
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final MatrixConfig config;
+    private final MatrixClientRegistry registry;
+    private final int pageSize;
+    private final int parallelism;
+    private final long pauseMillis;
+
+    private final AtomicInteger usersScanned = new AtomicInteger();
+    private final AtomicInteger roomsProvisioned = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final Set<MatrixService> warmedServices = ConcurrentHashMap.newKeySet();
+    private volatile Status status = Status.PENDING;
+    private volatile int offset;
+    private volatile boolean cancelled = false;
+
+    public RoomProvisioningJob(KeycloakSessionFactory sessionFactory, String realmId, MatrixConfig config,
+                               MatrixClientRegistry registry, int pageSize, int parallelism, long pauseMillis) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.config = config;
+        this.registry = registry;
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+        this.pauseMillis = pauseMillis;
+    }
+
+    @Override
+    public void run() {
+        status = Status.RUNNING;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "matrix-2fa-provisioning-" + realmId);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            offset = Math.max(0, loadCheckpoint() - pageSize);
+            logger.info("Starting Matrix room provisioning for realm " + realmId + " at offset " + offset);
+
+            Page page;
+            // Offset of the first page left with rate-limited users, the checkpoint is not moved past it
+            Integer retryOffset = null;
+            do {
+                page = fetchPage(offset);
+                boolean settled = provisionPage(page.matrixUserIds, executor);
+                if (cancelled) {
+                    status = Status.CANCELLED;
+                    return;
+                }
+                if (!settled && retryOffset == null) {
+                    retryOffset = offset;
+                    logger.warn("Matrix room provisioning for realm " + realmId + " is still rate limited at offset "
+                        + offset + ", keeping the checkpoint at this page");
+                }
+                offset += page.userCount;
+                if (retryOffset == null) {
+                    saveCheckpoint(offset);
+                }
+                Thread.sleep(pauseMillis);
+            } while (page.userCount == pageSize);
+
+            if (retryOffset != null) {
+                status = Status.FAILED;
+                logger.warn("Matrix room provisioning for realm " + realmId + " ended with rate-limited users, "
+                    + "the checkpoint stays at offset " + retryOffset);
+                return;
+            }
+            saveCheckpoint(null);
+            status = Status.COMPLETED;
+            logger.info("Matrix room provisioning for realm " + realmId + " completed: "
+                + roomsProvisioned.get() + " rooms provisioned, " + failures.get() + " failures");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = Status.CANCELLED;
+        } catch (Exception e) {
+            logger.error("Matrix room provisioning for realm " + realmId + " failed at offset " + offset, e);
+            status = Status.FAILED;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Requests the job to stop after the current page. The checkpoint of the last finished page is kept.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private Page fetchPage(int first) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            List<UserModel> users = session.users()
+                .searchForUserStream(realm, Map.of(UserModel.INCLUDE_SERVICE_ACCOUNT, "false"), first, pageSize)
+                .collect(Collectors.toList());
+            usersScanned.addAndGet(users.size());
+            return new Page(users.size(), users.stream()
+                .map(user -> user.getFirstAttribute(config.getUserIdAttribute()))
+                .filter(matrixUserId -> matrixUserId != null && !matrixUserId.trim().isEmpty())
+                .collect(Collectors.toList()));
+        });
+    }
+
+    /**
+     * @return false if the room of a user of the page is still refused by the homeserver's rate limit
+     */
+    private boolean provisionPage(List<String> matrixUserIds, ExecutorService executor) {
+        boolean settled = true;
+        // Rooms of a page are resolved in batches of at most 'parallelism' concurrent requests
+        for (int i = 0; i < matrixUserIds.size() && !cancelled; i += parallelism) {
+            List<CompletableFuture<Boolean>> batch = matrixUserIds.subList(i, Math.min(i + parallelism, matrixUserIds.size()))
+                .stream()
+                .map(matrixUserId -> CompletableFuture.supplyAsync(() -> provision(matrixUserId), executor))
+                .collect(Collectors.toList());
+            CompletableFuture.allOf(batch.toArray(new CompletableFuture[0])).join();
+            settled &= batch.stream().allMatch(CompletableFuture::join);
+        }
+        return settled;
+    }
+
+    /**
+     * Provisions the room of a user, retrying while the homeserver rate limits the bot.
+     * @return false if the homeserver still rate limits the bot after the last retry
+     */
+    private boolean provision(String matrixUserId) {
+        long backoffMillis = RATE_LIMIT_BACKOFF_MILLIS;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                MatrixService service = registry.get(config.forUser(matrixUserId));
+                warm(service);
+                service.ensureDirectMessageRoom(matrixUserId);
+                roomsProvisioned.incrementAndGet();
+                return true;
+            } catch (MatrixInitializationException | MatrixMessageException e) {
+                long retryAfterMillis = retryAfterMillis(e);
+                if (retryAfterMillis < 0) {
+                    failures.incrementAndGet();
+                    logger.warn("Failed to provision Matrix room for " + matrixUserId, e);
+                    return true;
+                }
+                if (attempt >= MAX_RATE_LIMIT_RETRIES || cancelled) {
+                    failures.incrementAndGet();
+                    logger.warn("Matrix room of " + matrixUserId + " is still rate limited after "
+                        + attempt + " retries", e);
+                    return false;
+                }
+                long delayMillis = Math.max(retryAfterMillis, backoffMillis);
+                logger.debug("Rate limited while provisioning the Matrix room of " + matrixUserId
+                    + ", retrying in " + delayMillis + " ms");
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    failures.incrementAndGet();
+                    return false;
+                }
+                backoffMillis *= 2;
+            }
+        }
+    }
+
+    /**
+     * Finds out whether an error is the homeserver's rate limit, either an HTTP 429 or an
+     * {@code M_LIMIT_EXCEEDED} error.
+     * @return The delay asked for by the homeserver in milliseconds, 0 if it gave none, or -1 if the error is
+     *         not a rate limit
+     */
+    static long retryAfterMillis(Throwable error) {
+        boolean rateLimited = false;
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null) {
+                Matcher retryAfter = RETRY_AFTER_PATTERN.matcher(message);
+                if (retryAfter.find()) {
+                    return Long.parseLong(retryAfter.group(1));
+                }
+                rateLimited |= message.contains("M_LIMIT_EXCEEDED");
+            }
+            if (cause instanceof WebApplicationException) {
+                Response response = ((WebApplicationException) cause).getResponse();
+                if (response != null && response.getStatus() == 429) {
+                    String header = response.getHeaderString("Retry-After");
+                    if (header != null && header.trim().matches("\\d+")) {
+                        return Long.parseLong(header.trim()) * 1000L;
+                    }
+                    rateLimited = true;
+                }
+            }
+        }
+        return rateLimited ? 0L : -1L;
+    }
+
+    /**
+     * Warms the room cache of a bot the first time one of its users is provisioned in this run.
+     */
+    private void warm(MatrixService service) throws MatrixMessageException {
+        if (warmedServices.contains(service)) {
+            return;
+        }
+        synchronized (warmedServices) {
+            // Marked only once warmed, so that no send of the bot misses rooms still being indexed
+            if (!warmedServices.contains(service)) {
+                service.warmRoomCache();
+                warmedServices.add(service);
+            }
+        }
+    }
+
+    private int loadCheckpoint() {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            String checkpoint = session.realms().getRealm(realmId).getAttribute(CHECKPOINT_ATTRIBUTE);
+            return checkpoint == null ? 0 : Integer.parseInt(checkpoint);
+        });
+    }
+
+    private void saveCheckpoint(Integer checkpoint) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            if (checkpoint == null) {
+                realm.removeAttribute(CHECKPOINT_ATTRIBUTE);
+            } else {
+                realm.setAttribute(CHECKPOINT_ATTRIBUTE, checkpoint);
+            }
+        });
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getUsersScanned() {
+        return usersScanned.get();
+    }
+
+    public int getRoomsProvisioned() {
+        return roomsProvisioned.get();
+    }
+
+    public int getFailures() {
+        return failures.get();
+    }
+
+    private static class Page {
+        private final int userCount;
+        private final List<String> matrixUserIds;
+
+        Page(int userCount, List<String> matrixUserIds) {
+            this.userCount = userCount;
+            this.matrixUserIds = matrixUserIds;
+        }
+    }
+}
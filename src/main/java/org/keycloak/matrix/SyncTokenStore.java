@@ -0,0 +1,58 @@
+package org.keycloak.matrix;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Persists the /sync 'since' token of each bot in a local directory, so that a restarted node
+ * resumes the incremental sync instead of starting over.
+ */
+class SyncTokenStore {
+    private static final Logger logger = Logger.getLogger(SyncTokenStore.class);
+
+    private final Path directory;
+
+    /**
+     * @param directory The directory holding the tokens, or null to keep tokens in memory only
+     */
+    SyncTokenStore(Path directory) {
+        this.directory = directory;
+    }
+
+    String load(String botKey) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = file(botKey);
+        try {
+            return Files.exists(file) ? Files.readString(file, StandardCharsets.UTF_8).trim() : null;
+        } catch (IOException e) {
+            logger.warn("Failed to read Matrix sync token from " + file, e);
+            return null;
+        }
+    }
+
+    void save(String botKey, String token) {
+        if (directory == null || token == null) {
+            return;
+        }
+        Path file = file(botKey);
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, "sync", ".tmp");
+            Files.writeString(temp, token, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Failed to write Matrix sync token to " + file, e);
+        }
+    }
+
+    private Path file(String botKey) {
+        return directory.resolve(botKey.replaceAll("[^A-Za-z0-9._-]", "_") + ".since");
+    }
+}
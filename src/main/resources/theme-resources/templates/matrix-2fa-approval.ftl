@@ -0,0 +1,35 @@
+<#import "template.ftl" as layout>
+<@layout.registrationLayout; section>
+    <#if section = "header">
+        ${msg("doLogIn")}
+    <#elseif section = "form">
+        <div id="kc-form">
+            <div id="kc-form-wrapper">
+                <form id="kc-approval-form" action="${url.loginAction}" method="post">
+                    <div class="alert alert-info">
+                        <p>${msg("matrix-2fa.approvalSent", matrixUserId)}</p>
+                        <p>${msg("matrix-2fa.approvalInstructions")}</p>
+                    </div>
+
+                    <noscript>
+                        <div class="form-group">
+                            <div id="kc-form-buttons" class="submit">
+                                <input tabindex="1"
+                                       class="button button-primary button-large"
+                                       name="check"
+                                       id="kc-check"
+                                       type="submit"
+                                       value="${msg("matrix-2fa.approvalCheck")}" />
+                            </div>
+                        </div>
+                    </noscript>
+                </form>
+                <script type="text/javascript">
+                    setTimeout(function () {
+                        document.getElementById("kc-approval-form").submit();
+                    }, ${pollSeconds} * 1000);
+                </script>
+            </div>
+        </div>
+    </#if>
+</@layout.registrationLayout>
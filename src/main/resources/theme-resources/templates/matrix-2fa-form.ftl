@@ -7,7 +7,11 @@
             <div id="kc-form-wrapper">
                 <form id="kc-form-login" action="${url.loginAction}" method="post">
                     <div class="alert alert-info">
-                        <p>${msg("matrix-2fa.otpSent", matrixUserId)}</p>
+                        <#if sentByEmail?? && sentByEmail>
+                            <p>${msg("matrix-2fa.otpSentByEmail")}</p>
+                        <#else>
+                            <p>${msg("matrix-2fa.otpSent", matrixUserId)}</p>
+                        </#if>
                     </div>
 
                     <div class="form-group">
@@ -42,6 +46,13 @@
                                    id="kc-login"
                                    type="submit"
                                    value="${msg("doSubmit")}" />
+                            <input tabindex="3"
+                                   class="button button-default button-large"
+                                   name="resend"
+                                   id="kc-resend"
+                                   type="submit"
+                                   formnovalidate
+                                   value="${msg("matrix-2fa.resendCode")}" />
                         </div>
                     </div>
                 </form>
@@ -0,0 +1,92 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+
+    @Test
+    void recordFailure_shouldOpenCircuitAtThreshold() {
+        // Arrange
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000L, now::get);
+
+        // Act
+        breaker.recordFailure();
+        breaker.recordFailure();
+        boolean allowedBeforeThreshold = breaker.allowRequest();
+        breaker.recordFailure();
+
+        // Assert
+        assertTrue(allowedBeforeThreshold);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(), "Sends should fail fast while the circuit is open");
+    }
+
+    @Test
+    void recordSuccess_shouldResetConsecutiveFailures() {
+        // Arrange
+        CircuitBreaker breaker = new CircuitBreaker(2, 1000L, now::get);
+
+        // Act
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+
+        // Assert
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void allowRequest_shouldLetSingleTrialThroughAfterOpenPeriod() {
+        // Arrange
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000L, now::get);
+        breaker.recordFailure();
+        now.set(1000L);
+
+        // Act
+        boolean trial = breaker.allowRequest();
+        boolean second = breaker.allowRequest();
+
+        // Assert
+        assertTrue(trial);
+        assertFalse(second, "Only one trial send should be allowed while half-open");
+    }
+
+    @Test
+    void recordFailure_shouldReopenCircuitWhenTrialFails() {
+        // Arrange
+        CircuitBreaker breaker = new CircuitBreaker(5, 1000L, now::get);
+        for (int i = 0; i < 5; i++) {
+            breaker.recordFailure();
+        }
+        now.set(1000L);
+        breaker.allowRequest();
+
+        // Act
+        breaker.recordFailure();
+
+        // Assert
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    void recordIgnored_shouldAllowNewTrialWhenTrialSaidNothing() {
+        // Arrange
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000L, now::get);
+        breaker.recordFailure();
+        now.set(1000L);
+        breaker.allowRequest();
+
+        // Act
+        breaker.recordIgnored();
+
+        // Assert
+        assertTrue(breaker.allowRequest(), "An inconclusive trial should not leave the circuit half-open for good");
+    }
+}
@@ -0,0 +1,114 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryLaneTest {
+
+    @Test
+    void submit_shouldCompleteWithResultOfSend() throws Exception {
+        // Arrange
+        DeliveryLane lane = new DeliveryLane("test", "realm", 1, 1, new Semaphore(1, true));
+
+        // Act
+        String roomId = lane.submit(() -> "!room:matrix.org").get(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals("!room:matrix.org", roomId);
+        lane.shutdown();
+    }
+
+    @Test
+    void submit_shouldRejectSendsWhenLaneIsFull() throws Exception {
+        // Arrange
+        DeliveryLane lane = new DeliveryLane("test", "realm", 1, 1, new Semaphore(10, true));
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> running = lane.submit(() -> release.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> queued = lane.submit(() -> true);
+
+        // Act
+        CompletableFuture<Boolean> rejected = lane.submit(() -> true);
+
+        // Assert
+        ExecutionException error = assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+        assertTrue(error.getCause() instanceof MatrixMessageException);
+        assertEquals(1, lane.getRejected());
+        release.countDown();
+        assertTrue(running.get(5, TimeUnit.SECONDS));
+        assertTrue(queued.get(5, TimeUnit.SECONDS));
+        lane.shutdown();
+    }
+
+    @Test
+    void submit_shouldSkipSendCancelledWhileQueued() throws Exception {
+        // Arrange
+        DeliveryLane lane = new DeliveryLane("test", "realm", 1, 1, new Semaphore(10, true));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean ran = new AtomicBoolean();
+        CompletableFuture<Boolean> running = lane.submit(() -> release.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> queued = lane.submit(() -> ran.getAndSet(true));
+
+        // Act
+        queued.cancel(false);
+        release.countDown();
+
+        // Assert
+        assertTrue(running.get(5, TimeUnit.SECONDS));
+        lane.shutdown();
+        assertTrue(lane.awaitTermination(5000));
+        assertFalse(ran.get(), "A send the login gave up on should not run");
+    }
+
+    @Test
+    void submit_shouldWaitForSharedPermit() throws Exception {
+        // Arrange
+        Semaphore permits = new Semaphore(1, true);
+        DeliveryLane busy = new DeliveryLane("busy", "realm-a", 1, 1, permits);
+        DeliveryLane other = new DeliveryLane("other", "realm-b", 1, 1, permits);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> holding = busy.submit(() -> release.await(5, TimeUnit.SECONDS));
+        while (permits.availablePermits() > 0) {
+            Thread.sleep(10);
+        }
+
+        // Act
+        CompletableFuture<String> waiting = other.submit(() -> "sent");
+        while (other.getWaitingForPermit() == 0) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        // Assert
+        assertTrue(holding.get(5, TimeUnit.SECONDS));
+        assertEquals("sent", waiting.get(5, TimeUnit.SECONDS));
+        busy.shutdown();
+        other.shutdown();
+    }
+
+    @Test
+    void awaitTermination_shouldRunQueuedSendsAfterShutdown() throws Exception {
+        // Arrange
+        DeliveryLane lane = new DeliveryLane("test", "realm", 1, 1, new Semaphore(1, true));
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> running = lane.submit(() -> release.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> queued = lane.submit(() -> true);
+        lane.shutdown();
+
+        // Act
+        release.countDown();
+        boolean drained = lane.awaitTermination(5000);
+
+        // Assert
+        assertTrue(drained);
+        assertTrue(running.isDone());
+        assertTrue(queued.get(), "Sends queued before shutdown should still run");
+    }
+}
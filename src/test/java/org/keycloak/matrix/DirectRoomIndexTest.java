@@ -0,0 +1,137 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectRoomIndexTest {
+
+    @Test
+    void get_shouldCountHitsAndMisses() {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        index.put("@user:matrix.org", "!room:matrix.org");
+
+        // Act
+        String hit = index.get("@user:matrix.org");
+        String miss = index.get("@other:matrix.org");
+
+        // Assert
+        assertEquals("!room:matrix.org", hit);
+        assertNull(miss);
+        assertEquals(1, index.getHits());
+        assertEquals(1, index.getMisses());
+    }
+
+    @Test
+    void putIfAbsent_shouldKeepFirstRoom() {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        index.putIfAbsent("@user:matrix.org", "!first:matrix.org");
+
+        // Act
+        index.putIfAbsent("@user:matrix.org", "!second:matrix.org");
+
+        // Assert
+        assertEquals("!first:matrix.org", index.get("@user:matrix.org"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void clear_shouldRemoveAllRooms() {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        index.put("@user:matrix.org", "!room:matrix.org");
+
+        // Act
+        index.clear();
+
+        // Assert
+        assertEquals(0, index.size());
+        assertNull(index.get("@user:matrix.org"));
+    }
+
+    @Test
+    void sharedStore_shouldIsolateIndexesByPrefix() {
+        // Arrange
+        ConcurrentMap<String, Object> store = new ConcurrentHashMap<>();
+        DirectRoomIndex first = new DirectRoomIndex(store, "first|", 0L);
+        DirectRoomIndex second = new DirectRoomIndex(store, "second|", 0L);
+        first.put("@user:matrix.org", "!first:matrix.org");
+        second.put("@user:matrix.org", "!second:matrix.org");
+
+        // Act
+        first.clear();
+
+        // Assert
+        assertEquals(0, first.size());
+        assertEquals(1, second.size());
+        assertEquals("!second:matrix.org", second.get("@user:matrix.org"));
+    }
+
+    @Test
+    void sharedStore_shouldExposeEntriesWrittenByOtherIndexes() {
+        // Arrange
+        ConcurrentMap<String, Object> store = new ConcurrentHashMap<>();
+        DirectRoomIndex writer = new DirectRoomIndex(store, "bot|", 0L);
+        DirectRoomIndex reader = new DirectRoomIndex(store, "bot|", 0L);
+
+        // Act
+        writer.put("@user:matrix.org", "!room:matrix.org");
+
+        // Assert
+        assertEquals("!room:matrix.org", reader.get("@user:matrix.org"));
+        assertEquals(1, reader.getHits());
+        assertEquals(0, writer.getHits(), "Hit counters should stay local");
+    }
+
+    @Test
+    void removeRoom_shouldOnlyRemoveEntriesOfThatRoom() {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        index.put("@user:matrix.org", "!room:matrix.org");
+        index.put("@other:matrix.org", "!other:matrix.org");
+
+        // Act
+        index.removeRoom("!room:matrix.org");
+
+        // Assert
+        assertNull(index.peek("@user:matrix.org"));
+        assertEquals("!other:matrix.org", index.peek("@other:matrix.org"));
+    }
+
+    @Test
+    void removeRoom_shouldKeepEntryOfUserMovedToAnotherRoom() {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        index.put("@user:matrix.org", "!old:matrix.org");
+        index.put("@user:matrix.org", "!new:matrix.org");
+
+        // Act
+        index.removeRoom("!old:matrix.org");
+
+        // Assert
+        assertEquals("!new:matrix.org", index.peek("@user:matrix.org"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void clear_shouldHideEntriesFromOtherIndexesOfSameNamespace() {
+        // Arrange
+        ConcurrentMap<String, Object> store = new ConcurrentHashMap<>();
+        DirectRoomIndex first = new DirectRoomIndex(store, "bot|", 0L);
+        DirectRoomIndex second = new DirectRoomIndex(store, "bot|", 0L);
+        first.put("@user:matrix.org", "!room:matrix.org");
+
+        // Act
+        second.clear();
+
+        // Assert
+        assertNull(first.peek("@user:matrix.org"), "A flush on one node should apply to the whole cluster");
+        first.put("@user:matrix.org", "!new:matrix.org");
+        assertEquals("!new:matrix.org", second.peek("@user:matrix.org"));
+    }
+}
@@ -0,0 +1,75 @@
+package org.keycloak.matrix;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JfrSpanTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void close_shouldCommitEventWithInheritedRealmAndBot() throws Exception {
+        // Arrange
+        Path dump = tempDir.resolve("matrix.jfr");
+
+        // Act
+        try (Recording recording = new Recording()) {
+            recording.enable("org.keycloak.matrix.RoomResolve").withThreshold(Duration.ZERO);
+            recording.start();
+            try (MatrixSpan outer = new JfrSpan("matrix.authenticate", MatrixSpan.NOOP)
+                    .tag(MatrixTracing.TAG_REALM, "test-realm")) {
+                try (MatrixSpan room = new JfrSpan("matrix.room.resolve", MatrixSpan.NOOP)
+                        .tag(MatrixTracing.TAG_BOT, "@bot:matrix.org")) {
+                    room.tag(MatrixTracing.TAG_CACHE_HIT, false);
+                    room.tag(MatrixTracing.TAG_ROOMS_SCANNED, 12L);
+                }
+            }
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        // Assert
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump).stream()
+            .filter(event -> event.getEventType().getName().equals("org.keycloak.matrix.RoomResolve"))
+            .collect(Collectors.toList());
+        assertEquals(1, events.size());
+        RecordedEvent event = events.get(0);
+        assertEquals("test-realm", event.getString("realm"), "Realm should be inherited from the enclosing span");
+        assertEquals("@bot:matrix.org", event.getString("bot"));
+        assertFalse(event.getBoolean("cacheHit"));
+        assertEquals(12, event.getInt("roomsScanned"));
+    }
+
+    @Test
+    void start_shouldNotRecordStagesBelowThreshold() throws Exception {
+        // Arrange
+        Path dump = tempDir.resolve("matrix.jfr");
+
+        // Act
+        try (Recording recording = new Recording()) {
+            recording.enable("org.keycloak.matrix.OtpValidate");
+            recording.start();
+            try (MatrixSpan span = new JfrSpan("matrix.otp.validate", MatrixSpan.NOOP)) {
+                span.tag(MatrixTracing.TAG_REALM, "test-realm");
+            }
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        // Assert
+        assertTrue(RecordingFile.readAllEvents(dump).stream()
+            .noneMatch(event -> event.getEventType().getName().equals("org.keycloak.matrix.OtpValidate")),
+            "Stages faster than the default threshold should not be recorded");
+    }
+}
@@ -0,0 +1,47 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyRecorderTest {
+
+    @Test
+    void percentiles_shouldUseNearestRank() {
+        // Arrange
+        LatencyRecorder recorder = new LatencyRecorder(100);
+        for (int i = 1; i <= 100; i++) {
+            recorder.record(i);
+        }
+
+        // Act
+        long[] percentiles = recorder.percentiles(50, 90, 99);
+
+        // Assert
+        assertArrayEquals(new long[]{50, 90, 99}, percentiles);
+    }
+
+    @Test
+    void percentiles_shouldOnlyKeepMostRecentSamples() {
+        // Arrange
+        LatencyRecorder recorder = new LatencyRecorder(2);
+        recorder.record(1000);
+        recorder.record(10);
+        recorder.record(20);
+
+        // Act
+        long[] percentiles = recorder.percentiles(100);
+
+        // Assert
+        assertEquals(20, percentiles[0], "Oldest sample should have been overwritten");
+    }
+
+    @Test
+    void percentiles_shouldReturnMinusOneWithoutSamples() {
+        // Act
+        long[] percentiles = new LatencyRecorder(10).percentiles(50, 99);
+
+        // Assert
+        assertArrayEquals(new long[]{-1, -1}, percentiles);
+    }
+}
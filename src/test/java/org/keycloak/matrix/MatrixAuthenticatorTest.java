@@ -0,0 +1,139 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class MatrixAuthenticatorTest {
+
+    private static final String MATRIX_USER_ID = "@alice:matrix.org";
+
+    private Map<String, String> configMap;
+    private AuthenticationFlowContext context;
+    private AuthenticationSessionModel authSession;
+    private UserModel user;
+    private MatrixService matrixService;
+    private DeliveryLane lane;
+    private MatrixAuthenticator authenticator;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        configMap = new HashMap<>();
+        configMap.put(MatrixConfig.MATRIX_SERVER_URL, "https://matrix.org");
+        configMap.put(MatrixConfig.BOT_USER_ID, "@bot:matrix.org");
+        configMap.put(MatrixConfig.BOT_ACCESS_TOKEN, "test_token");
+        configMap.put(MatrixConfig.EMAIL_FALLBACK, "true");
+        configMap.put(MatrixConfig.DELIVERY_BUDGET_MILLIS, "50");
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setId("config-id");
+        configModel.setConfig(configMap);
+
+        RealmModel realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("realm-id");
+        when(realm.getName()).thenReturn("realm");
+        user = mock(UserModel.class);
+        when(user.getId()).thenReturn("user-id");
+        when(user.getUsername()).thenReturn("alice");
+        when(user.getFirstAttribute("matrix_id")).thenReturn(MATRIX_USER_ID);
+        authSession = mock(AuthenticationSessionModel.class);
+
+        context = mock(AuthenticationFlowContext.class);
+        when(context.getRealm()).thenReturn(realm);
+        when(context.getUser()).thenReturn(user);
+        when(context.getAuthenticatorConfig()).thenReturn(configModel);
+        when(context.getAuthenticationSession()).thenReturn(authSession);
+        when(context.form()).thenReturn(mock(LoginFormsProvider.class, RETURNS_SELF));
+
+        matrixService = mock(MatrixService.class);
+        lane = new DeliveryLane("test", "realm-id", 1, 1, new Semaphore(1, true));
+        MatrixClientRegistry registry = mock(MatrixClientRegistry.class);
+        when(registry.get(any())).thenReturn(matrixService);
+        when(registry.getLane(anyString(), anyString(), anyInt(), anyInt())).thenReturn(lane);
+        authenticator = new MatrixAuthenticator(registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        lane.shutdown();
+    }
+
+    @Test
+    void authenticate_shouldWaitForMatrixPastBudgetWithoutVerifiedEmail() throws Exception {
+        // Arrange
+        when(matrixService.sendOTP(eq(MATRIX_USER_ID), anyString())).thenAnswer(invocation -> {
+            Thread.sleep(200);
+            return "!room:matrix.org";
+        });
+
+        // Act
+        authenticator.authenticate(context);
+
+        // Assert
+        verify(authSession).setAuthNote("matrix_2fa_room", "!room:matrix.org");
+        verify(context).challenge(any());
+        verify(context, never()).failure(any());
+    }
+
+    @Test
+    void authenticate_shouldSendWhileCircuitIsOpenWithoutVerifiedEmail() throws Exception {
+        // Arrange
+        when(matrixService.isCircuitOpen()).thenReturn(true);
+        when(matrixService.sendOTP(eq(MATRIX_USER_ID), anyString())).thenReturn("!room:matrix.org");
+
+        // Act
+        authenticator.authenticate(context);
+
+        // Assert
+        verify(matrixService).sendOTP(eq(MATRIX_USER_ID), anyString());
+        verify(context).challenge(any());
+    }
+
+    @Test
+    void authenticate_shouldFailWhenMatrixFailsWithoutVerifiedEmail() throws Exception {
+        // Arrange
+        when(matrixService.sendOTP(eq(MATRIX_USER_ID), anyString()))
+            .thenThrow(new MatrixMessageException("Room not found"));
+
+        // Act
+        authenticator.authenticate(context);
+
+        // Assert
+        verify(context).failure(AuthenticationFlowError.INVALID_CREDENTIALS);
+        verify(context, never()).challenge(any());
+    }
+
+    @Test
+    void authenticate_shouldFailWhenMatrixSendExceedsTimeout() throws Exception {
+        // Arrange
+        configMap.put(MatrixConfig.EMAIL_FALLBACK, "false");
+        configMap.put(MatrixConfig.DELIVERY_TIMEOUT_MILLIS, "100");
+        when(matrixService.sendOTP(eq(MATRIX_USER_ID), anyString())).thenAnswer(invocation -> {
+            Thread.sleep(2000);
+            return "!room:matrix.org";
+        });
+
+        // Act
+        long start = System.nanoTime();
+        authenticator.authenticate(context);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Assert
+        verify(context).failure(AuthenticationFlowError.INVALID_CREDENTIALS);
+        assertTrue(elapsedMillis < 1000, "The login should not wait past the delivery timeout");
+    }
+}
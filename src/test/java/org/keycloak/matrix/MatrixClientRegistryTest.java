@@ -0,0 +1,151 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticationFlowModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class MatrixClientRegistryTest {
+
+    private static final String BOT_KEY = "@bot:matrix.org@https://matrix.org";
+
+    private MatrixService service;
+    private MatrixClientRegistry registry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        service = mock(MatrixService.class);
+        AtomicBoolean initialized = new AtomicBoolean();
+        doAnswer(invocation -> {
+            initialized.set(true);
+            return null;
+        }).when(service).initialize(any());
+        when(service.isInitialized()).thenAnswer(invocation -> initialized.get());
+        when(service.getHealth()).thenReturn(ClientHealth.HEALTHY);
+        registry = new MatrixClientRegistry() {
+            @Override
+            MatrixService createService(String key) {
+                return service;
+            }
+        };
+    }
+
+    @Test
+    void checkHealth_shouldRebuildClientWhoseTokenWasRejected() throws Exception {
+        // Arrange
+        registry.get(new MatrixConfig(config("token-a")));
+        when(service.checkHealth()).thenReturn(ClientHealth.TOKEN_REJECTED);
+
+        // Act
+        registry.checkHealth();
+
+        // Assert
+        verify(service, times(2)).initialize(any());
+    }
+
+    @Test
+    void checkHealth_shouldNotRebuildHealthyClient() throws Exception {
+        // Arrange
+        registry.get(new MatrixConfig(config("token-a")));
+        when(service.checkHealth()).thenReturn(ClientHealth.HEALTHY);
+
+        // Act
+        registry.checkHealth();
+
+        // Assert
+        verify(service, times(1)).initialize(any());
+    }
+
+    @Test
+    void get_shouldOnlySwitchTokenOnceCurrentOneIsRejected() throws Exception {
+        // Arrange
+        MatrixConfig configA = new MatrixConfig(config("token-a"));
+        MatrixConfig configB = new MatrixConfig(config("token-b"));
+        registry.get(configA);
+
+        // Act
+        registry.get(configB);
+        registry.get(configA);
+        when(service.getHealth()).thenReturn(ClientHealth.TOKEN_REJECTED);
+        registry.get(configB);
+        registry.get(configB);
+
+        // Assert
+        verify(service, times(1)).initialize(configA);
+        verify(service, times(1)).initialize(configB);
+    }
+
+    @Test
+    void findReplacementConfig_shouldSkipConfigsHoldingActiveToken() throws Exception {
+        // Arrange
+        registry.get(new MatrixConfig(config("token-a")));
+        KeycloakSession session = givenRealmConfigs(config("token-a"), config("token-b"));
+
+        // Act
+        Optional<MatrixConfig> replacement = registry.findReplacementConfig(session, BOT_KEY);
+
+        // Assert
+        assertTrue(replacement.isPresent());
+        assertEquals("token-b", replacement.get().getBotAccessToken());
+    }
+
+    @Test
+    void findReplacementConfig_shouldBeEmptyWithoutAnotherToken() throws Exception {
+        // Arrange
+        registry.get(new MatrixConfig(config("token-a")));
+        KeycloakSession session = givenRealmConfigs(config("token-a"));
+
+        // Act
+        Optional<MatrixConfig> replacement = registry.findReplacementConfig(session, BOT_KEY);
+
+        // Assert
+        assertFalse(replacement.isPresent());
+    }
+
+    private static KeycloakSession givenRealmConfigs(AuthenticatorConfigModel... configs) {
+        RealmModel realm = mock(RealmModel.class);
+        AuthenticationFlowModel flow = new AuthenticationFlowModel();
+        flow.setId("browser");
+        when(realm.getAuthenticationFlowsStream()).thenAnswer(invocation -> Stream.of(flow));
+        when(realm.getAuthenticationExecutionsStream("browser")).thenAnswer(invocation -> Stream.of(configs)
+            .map(config -> {
+                AuthenticationExecutionModel execution = new AuthenticationExecutionModel();
+                execution.setAuthenticator(MatrixAuthenticatorFactory.ID);
+                execution.setAuthenticatorConfig(config.getId());
+                return execution;
+            }));
+        when(realm.getAuthenticatorConfigsStream()).thenAnswer(invocation -> Stream.of(configs));
+
+        RealmProvider realms = mock(RealmProvider.class);
+        when(realms.getRealmsStream()).thenAnswer(invocation -> Stream.of(realm));
+        KeycloakSession session = mock(KeycloakSession.class);
+        when(session.realms()).thenReturn(realms);
+        return session;
+    }
+
+    private static AuthenticatorConfigModel config(String token) {
+        Map<String, String> values = new HashMap<>();
+        values.put(MatrixConfig.MATRIX_SERVER_URL, "https://matrix.org");
+        values.put(MatrixConfig.BOT_USER_ID, "@bot:matrix.org");
+        values.put(MatrixConfig.BOT_ACCESS_TOKEN, token);
+        AuthenticatorConfigModel model = new AuthenticatorConfigModel();
+        model.setId("config-" + token);
+        model.setAlias("config-" + token);
+        model.setConfig(values);
+        return model;
+    }
+}
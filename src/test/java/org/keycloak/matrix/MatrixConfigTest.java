@@ -57,6 +57,10 @@ class MatrixConfigTest {
         assertEquals(300, config.getOtpValiditySeconds());
         assertEquals(6, config.getOtpLength());
         assertEquals("matrix_id", config.getUserIdAttribute());
+        assertFalse(config.isEmailFallback());
+        assertEquals(2000L, config.getDeliveryBudgetMillis());
+        assertEquals(10000L, config.getDeliveryTimeoutMillis());
+        assertEquals(20, config.getDeliveryLaneQueue());
     }
 
     @Test
@@ -127,4 +131,89 @@ class MatrixConfigTest {
         assertThrows(NumberFormatException.class, () -> new MatrixConfig(configModel),
             "Should throw exception when numeric values are invalid");
     }
-}
\ No newline at end of file
+
+    @Test
+    void constructor_shouldDefaultToCodeApprovalMode() {
+        // Arrange
+        Map<String, String> configMap = new HashMap<>();
+        configMap.put(MatrixConfig.MATRIX_SERVER_URL, "https://matrix.org");
+        configMap.put(MatrixConfig.BOT_USER_ID, "@bot:matrix.org");
+        configMap.put(MatrixConfig.BOT_ACCESS_TOKEN, "secret_token");
+
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setConfig(configMap);
+
+        // Act
+        MatrixConfig config = new MatrixConfig(configModel);
+
+        // Assert
+        assertEquals(MatrixConfig.APPROVAL_MODE_CODE, config.getApprovalMode());
+        assertFalse(config.isReactionApproval());
+    }
+
+    @Test
+    void constructor_shouldRejectUnknownApprovalMode() {
+        // Arrange
+        Map<String, String> configMap = new HashMap<>();
+        configMap.put(MatrixConfig.MATRIX_SERVER_URL, "https://matrix.org");
+        configMap.put(MatrixConfig.BOT_USER_ID, "@bot:matrix.org");
+        configMap.put(MatrixConfig.BOT_ACCESS_TOKEN, "secret_token");
+        configMap.put(MatrixConfig.APPROVAL_MODE, "carrier-pigeon");
+
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setConfig(configMap);
+
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> new MatrixConfig(configModel),
+            "Should throw exception when approval mode is unknown");
+    }
+
+    @Test
+    void forUser_shouldPickLongestMatchingRouteOrDefaultBot() {
+        // Arrange
+        Map<String, String> configMap = new HashMap<>();
+        configMap.put(MatrixConfig.MATRIX_SERVER_URL, "https://matrix.org");
+        configMap.put(MatrixConfig.BOT_USER_ID, "@bot:matrix.org");
+        configMap.put(MatrixConfig.BOT_ACCESS_TOKEN, "secret_token");
+        configMap.put(MatrixConfig.HOMESERVER_ROUTES,
+            "# example routes\n"
+            + "example.org https://matrix.example.org @bot:example.org example_token\n"
+            + "\n"
+            + "eu.example.org https://matrix.eu.example.org @bot:eu.example.org eu_token\n");
+
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setConfig(configMap);
+        MatrixConfig config = new MatrixConfig(configModel);
+
+        // Act
+        MatrixConfig example = config.forUser("@alice:example.org");
+        MatrixConfig europe = config.forUser("@bob:chat.eu.example.org:8448");
+        MatrixConfig other = config.forUser("@carol:notexample.org");
+
+        // Assert
+        assertEquals(2, config.getRoutes().size());
+        assertEquals("https://matrix.example.org", example.getServerUrl());
+        assertEquals("@bot:example.org", example.getBotUserId());
+        assertEquals("example_token", example.getBotAccessToken());
+        assertEquals(config.getOtpLength(), example.getOtpLength());
+        assertEquals("https://matrix.eu.example.org", europe.getServerUrl());
+        assertSame(config, other, "Users without a matching route should use the default bot");
+    }
+
+    @Test
+    void constructor_shouldRejectMalformedRoute() {
+        // Arrange
+        Map<String, String> configMap = new HashMap<>();
+        configMap.put(MatrixConfig.MATRIX_SERVER_URL, "https://matrix.org");
+        configMap.put(MatrixConfig.BOT_USER_ID, "@bot:matrix.org");
+        configMap.put(MatrixConfig.BOT_ACCESS_TOKEN, "secret_token");
+        configMap.put(MatrixConfig.HOMESERVER_ROUTES, "example.org https://matrix.example.org");
+
+        AuthenticatorConfigModel configModel = new AuthenticatorConfigModel();
+        configModel.setConfig(configMap);
+
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> new MatrixConfig(configModel),
+            "Should throw exception when a route is incomplete");
+    }
+}
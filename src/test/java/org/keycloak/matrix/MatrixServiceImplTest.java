@@ -7,6 +7,8 @@ import io.github.ma1uta.matrix.client.api.RoomApi;
 import io.github.ma1uta.matrix.client.model.auth.WhoamiResponse;
 import io.github.ma1uta.matrix.client.model.room.CreateRoomRequest;
 import io.github.ma1uta.matrix.client.model.room.CreateRoomResponse;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
 import io.github.ma1uta.matrix.event.content.RoomMessageContent;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -15,8 +17,10 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
@@ -81,6 +85,34 @@ class MatrixServiceImplTest {
         assertFalse(matrixService.isInitialized(), "Service should not be initialized after failure");
     }
 
+    @Test
+    void initialize_shouldKeepCurrentClientWhenRebuildFails() throws MatrixInitializationException {
+        // Arrange
+        MatrixServiceImpl service = initializedWithMockClient(new DirectRoomIndex());
+        when(authApi.whoami()).thenReturn(CompletableFuture.failedFuture(
+            new RuntimeException("M_UNKNOWN_TOKEN")));
+
+        // Act & Assert
+        assertThrows(MatrixInitializationException.class, () -> service.initialize(config));
+        assertTrue(service.isInitialized(), "A failed rebuild should keep the current client");
+        service.shutdown(0);
+    }
+
+    @Test
+    void checkHealth_shouldReportRejectedToken() throws MatrixInitializationException {
+        // Arrange
+        MatrixServiceImpl service = initializedWithMockClient(new DirectRoomIndex());
+        when(authApi.whoami()).thenReturn(CompletableFuture.failedFuture(
+            new RuntimeException("M_UNKNOWN_TOKEN: Invalid access token")));
+
+        // Act
+        ClientHealth health = service.checkHealth();
+
+        // Assert
+        assertEquals(ClientHealth.TOKEN_REJECTED, health);
+        service.shutdown(0);
+    }
+
     @Test
     void sendOTP_shouldSucceedWithExistingRoom() throws MatrixMessageException {
         // Arrange
@@ -159,10 +191,149 @@ class MatrixServiceImplTest {
             "Should throw exception when message sending fails");
     }
 
+    @Test
+    void sendOTP_shouldBeRefusedAfterShutdown() throws MatrixInitializationException {
+        // Arrange
+        matrixService.initialize(config);
+
+        // Act
+        matrixService.shutdown(0);
+
+        // Assert
+        assertFalse(matrixService.isInitialized(), "Service should not be initialized after shutdown");
+        assertThrows(MatrixMessageException.class,
+            () -> matrixService.sendOTP("@user:matrix.org", "123456"),
+            "Should throw exception once the service is shut down");
+    }
+
+    @Test
+    void checkHealth_shouldReportUnknownWhenNotInitialized() {
+        // Act
+        ClientHealth health = matrixService.checkHealth();
+
+        // Assert
+        assertEquals(ClientHealth.UNKNOWN, health, "An uninitialized client should not be probed");
+        assertEquals(ClientHealth.UNKNOWN, matrixService.getStats().getHealth());
+    }
+
+    @Test
+    void compactRooms_shouldLeaveAbandonedRoom() throws Exception {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        MatrixServiceImpl service = initializedWithMockClient(index);
+        givenJoinedRooms("!abandoned:matrix.org");
+        givenMembers("!abandoned:matrix.org", member("@bot:matrix.org", RoomMember.JOIN),
+            member("@user:matrix.org", RoomMember.LEAVE));
+
+        // Act
+        RoomCompactionResult result = service.compactRooms(userId -> true, 10, 0);
+
+        // Assert
+        assertEquals(1, result.getAbandonedRoomsLeft());
+        verify(roomApi).leave("!abandoned:matrix.org");
+        service.shutdown(0);
+    }
+
+    @Test
+    void compactRooms_shouldLeaveRoomOfUnknownUser() throws Exception {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        MatrixServiceImpl service = initializedWithMockClient(index);
+        givenJoinedRooms("!orphaned:matrix.org");
+        givenMembers("!orphaned:matrix.org", member("@bot:matrix.org", RoomMember.JOIN),
+            member("@gone:matrix.org", RoomMember.JOIN));
+
+        // Act
+        RoomCompactionResult result = service.compactRooms(userId -> false, 10, 0);
+
+        // Assert
+        assertEquals(1, result.getOrphanedRoomsLeft());
+        verify(roomApi).leave("!orphaned:matrix.org");
+        service.shutdown(0);
+    }
+
+    @Test
+    void compactRooms_shouldKeepIndexedJoinedRoomAndLeaveDuplicate() throws Exception {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        index.put("@user:matrix.org", "!canonical:matrix.org");
+        MatrixServiceImpl service = initializedWithMockClient(index);
+        givenJoinedRooms("!duplicate:matrix.org", "!canonical:matrix.org");
+        givenMembers("!duplicate:matrix.org", member("@bot:matrix.org", RoomMember.JOIN),
+            member("@user:matrix.org", RoomMember.JOIN));
+        givenMembers("!canonical:matrix.org", member("@bot:matrix.org", RoomMember.JOIN),
+            member("@user:matrix.org", RoomMember.JOIN));
+
+        // Act
+        RoomCompactionResult result = service.compactRooms(userId -> true, 10, 0);
+
+        // Assert
+        assertEquals(1, result.getDuplicateRoomsLeft());
+        verify(roomApi).leave("!duplicate:matrix.org");
+        verify(roomApi, never()).leave("!canonical:matrix.org");
+        assertEquals("!canonical:matrix.org", index.peek("@user:matrix.org"));
+        service.shutdown(0);
+    }
+
+    @Test
+    void compactRooms_shouldPreferJoinedRoomOverIndexedInvitedOnlyRoom() throws Exception {
+        // Arrange
+        DirectRoomIndex index = new DirectRoomIndex();
+        index.put("@user:matrix.org", "!invited:matrix.org");
+        MatrixServiceImpl service = initializedWithMockClient(index);
+        givenJoinedRooms("!joined:matrix.org", "!invited:matrix.org");
+        givenMembers("!joined:matrix.org", member("@bot:matrix.org", RoomMember.JOIN),
+            member("@user:matrix.org", RoomMember.JOIN));
+        givenMembers("!invited:matrix.org", member("@bot:matrix.org", RoomMember.JOIN),
+            member("@user:matrix.org", RoomMember.INVITE));
+
+        // Act
+        RoomCompactionResult result = service.compactRooms(userId -> true, 10, 0);
+
+        // Assert
+        assertEquals(1, result.getDuplicateRoomsLeft());
+        verify(roomApi).leave("!invited:matrix.org");
+        verify(roomApi, never()).leave("!joined:matrix.org");
+        assertEquals("!joined:matrix.org", index.peek("@user:matrix.org"));
+        service.shutdown(0);
+    }
+
+    private MatrixServiceImpl initializedWithMockClient(DirectRoomIndex index) throws MatrixInitializationException {
+        MatrixServiceImpl service = new MatrixServiceImpl(new SyncTokenStore(null), index,
+            new CircuitBreaker(5, 30000L)) {
+            @Override
+            MatrixClient createClient(MatrixConfig config) {
+                return matrixClient;
+            }
+        };
+        service.initialize(config);
+        when(roomApi.leave(anyString())).thenReturn(CompletableFuture.completedFuture(null));
+        when(roomApi.forget(anyString())).thenReturn(CompletableFuture.completedFuture(null));
+        return service;
+    }
+
+    private void givenJoinedRooms(String... roomIds) {
+        when(roomApi.joinedRooms()).thenReturn(CompletableFuture.completedFuture(Arrays.asList(roomIds)));
+    }
+
+    private void givenMembers(String roomId, RoomMember... members) {
+        List<RoomMember> list = Arrays.asList(members);
+        when(roomApi.members(roomId)).thenReturn(CompletableFuture.completedFuture(list));
+    }
+
+    private static RoomMember member(String userId, String membership) {
+        RoomMemberContent content = new RoomMemberContent();
+        content.setMembership(membership);
+        RoomMember member = new RoomMember();
+        member.setStateKey(userId);
+        member.setContent(content);
+        return member;
+    }
+
     private org.keycloak.models.AuthenticatorConfigModel createConfigModel(Map<String, String> config) {
         org.keycloak.models.AuthenticatorConfigModel model = 
             new org.keycloak.models.AuthenticatorConfigModel();
         model.setConfig(config);
         return model;
     }
-}
\ No newline at end of file
+}
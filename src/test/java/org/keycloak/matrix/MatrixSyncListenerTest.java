@@ -0,0 +1,242 @@
+package org.keycloak.matrix;
+
+import io.github.ma1uta.matrix.Event;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.LeftRoom;
+import io.github.ma1uta.matrix.client.model.sync.Rooms;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.client.model.sync.Timeline;
+import io.github.ma1uta.matrix.event.RawEvent;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.content.RawEventContent;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MatrixSyncListenerTest {
+
+    private static final String BOT = "@bot:matrix.org";
+    private static final String USER = "@user:matrix.org";
+    private static final String ROOM = "!room:matrix.org";
+
+    private DirectRoomIndex roomIndex;
+    private MatrixSyncListener listener;
+
+    @BeforeEach
+    void setUp() {
+        roomIndex = new DirectRoomIndex();
+        roomIndex.put(USER, ROOM);
+        listener = new MatrixSyncListener(null, BOT, roomIndex, new SyncTokenStore(null), "bot", null);
+    }
+
+    @Test
+    void handleSync_shouldRemoveRoomLeftByUser() {
+        // Act
+        listener.handleSync(joined(ROOM, member(USER, RoomMember.LEAVE)));
+
+        // Assert
+        assertNull(roomIndex.peek(USER));
+    }
+
+    @Test
+    void handleSync_shouldKeepRoomWhenUserJoins() {
+        // Act
+        listener.handleSync(joined(ROOM, member(USER, RoomMember.JOIN)));
+
+        // Assert
+        assertEquals(ROOM, roomIndex.peek(USER));
+    }
+
+    @Test
+    void handleSync_shouldRemoveRoomWhenBotIsBanned() {
+        // Act
+        listener.handleSync(joined(ROOM, member(BOT, RoomMember.BAN)));
+
+        // Assert
+        assertNull(roomIndex.peek(USER));
+    }
+
+    @Test
+    void handleSync_shouldRemoveUpgradedRoom() {
+        // Arrange
+        Event tombstone = mock(Event.class);
+        when(tombstone.getType()).thenReturn("m.room.tombstone");
+
+        // Act
+        listener.handleSync(joined(ROOM, tombstone));
+
+        // Assert
+        assertNull(roomIndex.peek(USER));
+    }
+
+    @Test
+    void handleSync_shouldRemoveRoomLeftByBot() {
+        // Arrange
+        Rooms rooms = mock(Rooms.class);
+        when(rooms.getLeave()).thenReturn(Collections.singletonMap(ROOM, mock(LeftRoom.class)));
+
+        // Act
+        listener.handleSync(response(rooms));
+
+        // Assert
+        assertNull(roomIndex.peek(USER));
+    }
+
+    @Test
+    void handleSync_shouldApprovePromptOnReactionOfUser() {
+        // Arrange
+        listener.register("$prompt", USER, 60);
+
+        // Act
+        listener.handleSync(joined(ROOM, reaction(USER, "$prompt", MatrixSyncListener.APPROVE_KEY)));
+
+        // Assert
+        assertEquals(ApprovalState.APPROVED, listener.getState("$prompt"));
+    }
+
+    @Test
+    void handleSync_shouldApprovePromptOnThumbWithSkinTone() {
+        // Arrange
+        listener.register("$prompt", USER, 60);
+
+        // Act
+        listener.handleSync(joined(ROOM, reaction(USER, "$prompt", "\uD83D\uDC4D\uD83C\uDFFD")));
+
+        // Assert
+        assertEquals(ApprovalState.APPROVED, listener.getState("$prompt"));
+    }
+
+    @Test
+    void handleSync_shouldDenyPromptOnThumbWithPresentationSelector() {
+        // Arrange
+        listener.register("$prompt", USER, 60);
+
+        // Act
+        listener.handleSync(joined(ROOM, reaction(USER, "$prompt", "\uD83D\uDC4E\uFE0F")));
+
+        // Assert
+        assertEquals(ApprovalState.DENIED, listener.getState("$prompt"));
+    }
+
+    @Test
+    void handleSync_shouldIgnoreOtherReactions() {
+        // Arrange
+        listener.register("$prompt", USER, 60);
+
+        // Act
+        listener.handleSync(joined(ROOM, reaction(USER, "$prompt", "\uD83C\uDFFD")));
+
+        // Assert
+        assertEquals(ApprovalState.PENDING, listener.getState("$prompt"));
+    }
+
+    @Test
+    void handleSync_shouldIgnoreReactionOfOtherUser() {
+        // Arrange
+        listener.register("$prompt", USER, 60);
+
+        // Act
+        listener.handleSync(joined(ROOM, reaction("@other:matrix.org", "$prompt", MatrixSyncListener.APPROVE_KEY)));
+
+        // Assert
+        assertEquals(ApprovalState.PENDING, listener.getState("$prompt"));
+    }
+
+    @Test
+    void register_shouldApplyReactionReceivedBeforePromptWasRegistered() {
+        // Arrange
+        listener.handleSync(joined(ROOM, reaction(USER, "$prompt", MatrixSyncListener.APPROVE_KEY)));
+
+        // Act
+        listener.register("$prompt", USER, 60);
+
+        // Assert
+        assertEquals(ApprovalState.APPROVED, listener.getState("$prompt"),
+            "A reaction racing the prompt's send should not be lost");
+    }
+
+    @Test
+    void register_shouldApplyEarlyThumbWithSkinTone() {
+        // Arrange
+        listener.handleSync(joined(ROOM, reaction(USER, "$prompt", "\uD83D\uDC4D\uD83C\uDFFB")));
+
+        // Act
+        listener.register("$prompt", USER, 60);
+
+        // Assert
+        assertEquals(ApprovalState.APPROVED, listener.getState("$prompt"));
+    }
+
+    @Test
+    void register_shouldIgnoreEarlyReactionOfOtherUser() {
+        // Arrange
+        listener.handleSync(joined(ROOM, reaction("@other:matrix.org", "$prompt", MatrixSyncListener.APPROVE_KEY)));
+
+        // Act
+        listener.register("$prompt", USER, 60);
+
+        // Assert
+        assertEquals(ApprovalState.PENDING, listener.getState("$prompt"));
+    }
+
+    @Test
+    void constructor_shouldTakeOverPendingApprovalsOfPreviousListener() {
+        // Arrange
+        listener.register("$prompt", USER, 60);
+
+        // Act
+        MatrixSyncListener replacement = new MatrixSyncListener(null, BOT, roomIndex, new SyncTokenStore(null),
+            "bot", listener);
+        replacement.handleSync(joined(ROOM, reaction(USER, "$prompt", MatrixSyncListener.DENY_KEY)));
+
+        // Assert
+        assertEquals(ApprovalState.DENIED, replacement.getState("$prompt"));
+    }
+
+    private static SyncResponse joined(String roomId, Event... events) {
+        Timeline timeline = mock(Timeline.class);
+        when(timeline.getEvents()).thenReturn(Arrays.asList(events));
+        JoinedRoom room = mock(JoinedRoom.class);
+        when(room.getTimeline()).thenReturn(timeline);
+        Rooms rooms = mock(Rooms.class);
+        when(rooms.getJoin()).thenReturn(Collections.singletonMap(roomId, room));
+        return response(rooms);
+    }
+
+    private static SyncResponse response(Rooms rooms) {
+        SyncResponse response = mock(SyncResponse.class);
+        when(response.getRooms()).thenReturn(rooms);
+        return response;
+    }
+
+    private static RoomMember member(String userId, String membership) {
+        RoomMemberContent content = new RoomMemberContent();
+        content.setMembership(membership);
+        RoomMember member = new RoomMember();
+        member.setStateKey(userId);
+        member.setContent(content);
+        return member;
+    }
+
+    private static RawEvent reaction(String sender, String eventId, String key) {
+        Map<String, Object> relation = new HashMap<>();
+        relation.put("rel_type", "m.annotation");
+        relation.put("event_id", eventId);
+        relation.put("key", key);
+        RawEventContent content = mock(RawEventContent.class);
+        when(content.getProperties()).thenReturn(Collections.singletonMap("m.relates_to", relation));
+        RawEvent event = mock(RawEvent.class);
+        when(event.getType()).thenReturn("m.reaction");
+        when(event.getSender()).thenReturn(sender);
+        when(event.getContent()).thenReturn(content);
+        return event;
+    }
+}
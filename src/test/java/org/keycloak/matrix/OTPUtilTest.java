@@ -7,6 +7,14 @@ import org.keycloak.models.UserModel;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
@@ -85,8 +93,8 @@ class OTPUtilTest {
 
         // Assert
         assertFalse(isValid, "Incorrect OTP should be invalid");
-        verify(userModel).removeAttribute("matrix_2fa_otp");
-        verify(userModel).removeAttribute("matrix_2fa_otp_expiry");
+        verify(userModel, never()).removeAttribute("matrix_2fa_otp");
+        verify(userModel, never()).removeAttribute("matrix_2fa_otp_expiry");
     }
 
     @Test
@@ -122,4 +130,164 @@ class OTPUtilTest {
         // Assert
         assertFalse(isValid, "OTP should be invalid when attributes are missing");
     }
-}
\ No newline at end of file
+
+    @Test
+    void getValidOTP_shouldReturnStoredOTPWithoutClearingIt() {
+        // Arrange
+        String otp = "123456";
+        int expiryTime = Time.currentTime() + 300;
+
+        when(userModel.getFirstAttribute("matrix_2fa_otp")).thenReturn(otp);
+        when(userModel.getFirstAttribute("matrix_2fa_otp_expiry"))
+            .thenReturn(String.valueOf(expiryTime));
+
+        // Act
+        String validOtp = OTPUtil.getValidOTP(userModel);
+
+        // Assert
+        assertEquals(otp, validOtp);
+        verify(userModel, never()).removeAttribute(anyString());
+        verify(userModel, never()).setSingleAttribute(anyString(), anyString());
+    }
+
+    @Test
+    void getValidOTP_shouldReturnNullForExpiredOTP() {
+        // Arrange
+        when(userModel.getFirstAttribute("matrix_2fa_otp")).thenReturn("123456");
+        when(userModel.getFirstAttribute("matrix_2fa_otp_expiry"))
+            .thenReturn(String.valueOf(Time.currentTime() - 1));
+
+        // Act & Assert
+        assertNull(OTPUtil.getValidOTP(userModel), "Expired OTP should not be returned");
+    }
+
+    @Test
+    void verifyOTP_shouldAcceptCorrectOTP() {
+        // Arrange
+        givenOTP("user-1", "123456", Time.currentTime() + 300);
+
+        // Act
+        OTPUtil.AttemptResult result = OTPUtil.verifyOTP(userModel, "123456", 3);
+
+        // Assert
+        assertEquals(OTPUtil.AttemptResult.VALID, result);
+        verify(userModel).removeAttribute("matrix_2fa_otp");
+    }
+
+    @Test
+    void verifyOTP_shouldKeepOTPBelowLimit() {
+        // Arrange
+        givenOTP("user-2", "123456", Time.currentTime() + 300);
+
+        // Act
+        OTPUtil.AttemptResult first = OTPUtil.verifyOTP(userModel, "000000", 3);
+        OTPUtil.AttemptResult second = OTPUtil.verifyOTP(userModel, "000000", 3);
+
+        // Assert
+        assertEquals(OTPUtil.AttemptResult.RETRY, first);
+        assertEquals(OTPUtil.AttemptResult.RETRY, second, "OTP should be kept after the second attempt");
+        verify(userModel, never()).removeAttribute(anyString());
+        verify(userModel, never()).setSingleAttribute(anyString(), anyString());
+    }
+
+    @Test
+    void verifyOTP_shouldDiscardOTPAtLimit() {
+        // Arrange
+        givenOTP("user-3", "123456", Time.currentTime() + 300);
+        OTPUtil.verifyOTP(userModel, "000000", 3);
+        OTPUtil.verifyOTP(userModel, "000000", 3);
+
+        // Act
+        OTPUtil.AttemptResult third = OTPUtil.verifyOTP(userModel, "000000", 3);
+        OTPUtil.AttemptResult afterLimit = OTPUtil.verifyOTP(userModel, "123456", 3);
+
+        // Assert
+        assertEquals(OTPUtil.AttemptResult.TOO_MANY_ATTEMPTS, third, "OTP should be discarded after the third attempt");
+        assertEquals(OTPUtil.AttemptResult.TOO_MANY_ATTEMPTS, afterLimit,
+            "The right code should not be accepted once the budget is spent");
+        verify(userModel, atLeastOnce()).removeAttribute("matrix_2fa_otp");
+        verify(userModel, atLeastOnce()).removeAttribute("matrix_2fa_otp_expiry");
+    }
+
+    @Test
+    void verifyOTP_shouldReportMissingOTP() {
+        // Arrange
+        when(userModel.getFirstAttribute("matrix_2fa_otp")).thenReturn(null);
+        when(userModel.getFirstAttribute("matrix_2fa_otp_expiry")).thenReturn(null);
+
+        // Act
+        OTPUtil.AttemptResult result = OTPUtil.verifyOTP(userModel, "123456", 3);
+
+        // Assert
+        assertEquals(OTPUtil.AttemptResult.NO_OTP, result, "An expired or discarded OTP is not a guessing attempt");
+    }
+
+    @Test
+    void verifyOTP_shouldReportExpiredOTP() {
+        // Arrange
+        givenOTP("user-4", "123456", Time.currentTime() - 1);
+
+        // Act
+        OTPUtil.AttemptResult result = OTPUtil.verifyOTP(userModel, "123456", 3);
+
+        // Assert
+        assertEquals(OTPUtil.AttemptResult.NO_OTP, result);
+        verify(userModel).removeAttribute("matrix_2fa_otp");
+    }
+
+    @Test
+    void verifyOTP_shouldShareBudgetAcrossConcurrentGuesses() throws Exception {
+        // Arrange
+        givenOTP("user-5", "123456", Time.currentTime() + 300);
+        int guesses = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<OTPUtil.AttemptResult>> results = new ArrayList<>();
+        for (int i = 0; i < guesses; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return OTPUtil.verifyOTP(userModel, "000000", 3);
+            }));
+        }
+
+        // Act
+        start.countDown();
+        int retries = 0;
+        int refused = 0;
+        for (Future<OTPUtil.AttemptResult> result : results) {
+            if (result.get(5, TimeUnit.SECONDS) == OTPUtil.AttemptResult.RETRY) {
+                retries++;
+            } else {
+                refused++;
+            }
+        }
+        executor.shutdown();
+
+        // Assert
+        assertEquals(2, retries, "Only the guesses within the budget should be compared");
+        assertEquals(guesses - 2, refused);
+    }
+
+    @Test
+    void storeOTP_shouldResetAttemptCounter() {
+        // Arrange
+        int expiryTime = Time.currentTime() + 300;
+        givenOTP("user-6", "123456", expiryTime);
+        OTPUtil.verifyOTP(userModel, "000000", 2);
+        OTPUtil.verifyOTP(userModel, "000000", 2);
+
+        // Act
+        OTPUtil.storeOTP(userModel, "123456", 300);
+        givenOTP("user-6", "123456", expiryTime);
+
+        // Assert
+        assertEquals(OTPUtil.AttemptResult.VALID, OTPUtil.verifyOTP(userModel, "123456", 2),
+            "A new OTP should come with a fresh attempt budget");
+    }
+
+    private void givenOTP(String userId, String otp, int expiryTime) {
+        when(userModel.getId()).thenReturn(userId);
+        when(userModel.getFirstAttribute("matrix_2fa_otp")).thenReturn(otp);
+        when(userModel.getFirstAttribute("matrix_2fa_otp_expiry")).thenReturn(String.valueOf(expiryTime));
+    }
+}
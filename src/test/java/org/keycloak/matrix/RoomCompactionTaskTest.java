@@ -0,0 +1,125 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticationFlowModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class RoomCompactionTaskTest {
+
+    private static final String BOT_X = "@x:matrix.org@https://matrix.org";
+    private static final String BOT_Y = "@y:example.org@https://example.org";
+
+    private KeycloakSession session;
+    private UserProvider users;
+    private RealmModel realm;
+    private RoomCompactionTask task;
+
+    @BeforeEach
+    void setUp() {
+        session = mock(KeycloakSession.class);
+        users = mock(UserProvider.class);
+        RealmProvider realms = mock(RealmProvider.class);
+        realm = mock(RealmModel.class);
+        when(realm.getId()).thenReturn("realm-a");
+        when(realm.getName()).thenReturn("realm-a");
+        when(session.realms()).thenReturn(realms);
+        when(session.users()).thenReturn(users);
+        when(realms.getRealmsStream()).thenAnswer(invocation -> Stream.of(realm));
+        when(users.searchForUserByUserAttributeStream(any(), anyString(), anyString()))
+            .thenAnswer(invocation -> Stream.empty());
+        task = new RoomCompactionTask(new MatrixClientRegistry(), 10, 0L);
+    }
+
+    @Test
+    void isKnownUser_shouldCheckEveryConfigOfRealmUsingBot() {
+        // Arrange
+        givenConfigs(
+            config("first", "https://matrix.org", "@x:matrix.org", "matrix_id"),
+            config("second", "https://example.org", "@y:example.org", "example_id"));
+        UserModel user = mock(UserModel.class);
+        when(users.searchForUserByUserAttributeStream(realm, "example_id", "@alice:example.org"))
+            .thenAnswer(invocation -> Stream.of(user));
+
+        // Act
+        List<RoomCompactionTask.UserLookup> lookups = task.findUserLookups(session, BOT_Y);
+        Predicate<String> isKnownUser = task.isKnownUser(session, lookups);
+
+        // Assert
+        assertEquals(1, lookups.size(), "Only the config using the bot should be checked");
+        assertTrue(isKnownUser.test("@alice:example.org"),
+            "A user of the realm's second config should not look orphaned");
+        assertFalse(isKnownUser.test("@bob:example.org"));
+    }
+
+    @Test
+    void findUserLookups_shouldIncludeConfigsRoutingToBot() {
+        // Arrange
+        AuthenticatorConfigModel routed = config("routed", "https://matrix.org", "@x:matrix.org", "matrix_id");
+        routed.getConfig().put(MatrixConfig.HOMESERVER_ROUTES, "example.org https://example.org @y:example.org token");
+        givenConfigs(routed);
+
+        // Act
+        List<RoomCompactionTask.UserLookup> lookups = task.findUserLookups(session, BOT_Y);
+
+        // Assert
+        assertEquals(1, lookups.size());
+    }
+
+    @Test
+    void findUserLookups_shouldIgnoreRealmsNotUsingBot() {
+        // Arrange
+        givenConfigs(config("first", "https://matrix.org", "@x:matrix.org", "matrix_id"));
+
+        // Act
+        List<RoomCompactionTask.UserLookup> lookups = task.findUserLookups(session, BOT_Y);
+
+        // Assert
+        assertTrue(lookups.isEmpty());
+        assertEquals(1, task.findUserLookups(session, BOT_X).size());
+    }
+
+    private void givenConfigs(AuthenticatorConfigModel... configs) {
+        AuthenticationFlowModel flow = new AuthenticationFlowModel();
+        flow.setId("browser");
+        when(realm.getAuthenticationFlowsStream()).thenAnswer(invocation -> Stream.of(flow));
+        when(realm.getAuthenticationExecutionsStream("browser")).thenAnswer(invocation -> Stream.of(configs)
+            .map(config -> {
+                AuthenticationExecutionModel execution = new AuthenticationExecutionModel();
+                execution.setAuthenticator(MatrixAuthenticatorFactory.ID);
+                execution.setAuthenticatorConfig(config.getId());
+                return execution;
+            }));
+        when(realm.getAuthenticatorConfigsStream()).thenAnswer(invocation -> Stream.of(configs));
+    }
+
+    private static AuthenticatorConfigModel config(String id, String serverUrl, String botUserId,
+                                                   String userIdAttribute) {
+        Map<String, String> values = new HashMap<>();
+        values.put(MatrixConfig.MATRIX_SERVER_URL, serverUrl);
+        values.put(MatrixConfig.BOT_USER_ID, botUserId);
+        values.put(MatrixConfig.BOT_ACCESS_TOKEN, "token");
+        values.put(MatrixConfig.USER_ID_ATTRIBUTE, userIdAttribute);
+        AuthenticatorConfigModel model = new AuthenticatorConfigModel();
+        model.setId(id);
+        model.setAlias(id);
+        model.setConfig(values);
+        return model;
+    }
+}
@@ -0,0 +1,47 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoomProvisioningJobTest {
+
+    @Test
+    void retryAfterMillis_shouldReadDelayOfRateLimitError() {
+        // Arrange
+        MatrixMessageException error = new MatrixMessageException("Failed to create direct message room",
+            new RuntimeException("{\"errcode\":\"M_LIMIT_EXCEEDED\",\"error\":\"Too Many Requests\",\"retry_after_ms\": 2000}"));
+
+        // Act
+        long retryAfterMillis = RoomProvisioningJob.retryAfterMillis(error);
+
+        // Assert
+        assertEquals(2000L, retryAfterMillis);
+    }
+
+    @Test
+    void retryAfterMillis_shouldBeZeroForRateLimitWithoutDelay() {
+        // Arrange
+        MatrixMessageException error = new MatrixMessageException("Failed to create direct message room",
+            new RuntimeException("M_LIMIT_EXCEEDED: Too Many Requests"));
+
+        // Act
+        long retryAfterMillis = RoomProvisioningJob.retryAfterMillis(error);
+
+        // Assert
+        assertEquals(0L, retryAfterMillis);
+    }
+
+    @Test
+    void retryAfterMillis_shouldBeNegativeForOtherErrors() {
+        // Arrange
+        MatrixMessageException error = new MatrixMessageException("Failed to create direct message room",
+            new RuntimeException("M_UNKNOWN: User not found"));
+
+        // Act
+        long retryAfterMillis = RoomProvisioningJob.retryAfterMillis(error);
+
+        // Assert
+        assertEquals(-1L, retryAfterMillis);
+    }
+}
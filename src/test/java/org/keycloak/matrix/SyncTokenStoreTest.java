@@ -0,0 +1,59 @@
+package org.keycloak.matrix;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SyncTokenStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void load_shouldReturnSavedToken() {
+        // Arrange
+        SyncTokenStore store = new SyncTokenStore(directory);
+        store.save("@bot:matrix.org@https://matrix.org", "s72594_4483_1934");
+
+        // Act
+        String token = new SyncTokenStore(directory).load("@bot:matrix.org@https://matrix.org");
+
+        // Assert
+        assertEquals("s72594_4483_1934", token, "A restarted node should resume from the saved token");
+    }
+
+    @Test
+    void save_shouldReplacePreviousToken() {
+        // Arrange
+        SyncTokenStore store = new SyncTokenStore(directory);
+        store.save("bot", "first");
+
+        // Act
+        store.save("bot", "second");
+
+        // Assert
+        assertEquals("second", store.load("bot"));
+    }
+
+    @Test
+    void load_shouldKeepTokensOfBotsApart() {
+        // Arrange
+        SyncTokenStore store = new SyncTokenStore(directory);
+        store.save("@bot:matrix.org@https://matrix.org", "matrix");
+        store.save("@bot:example.org@https://example.org", "example");
+
+        // Act & Assert
+        assertEquals("matrix", store.load("@bot:matrix.org@https://matrix.org"));
+        assertEquals("example", store.load("@bot:example.org@https://example.org"));
+    }
+
+    @Test
+    void load_shouldReturnNullWithoutDirectoryOrToken() {
+        // Act & Assert
+        assertNull(new SyncTokenStore(null).load("bot"), "An in-memory store keeps nothing across restarts");
+        assertNull(new SyncTokenStore(directory).load("unknown"));
+    }
+}